@@ -0,0 +1,668 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerStatePlugin;
+import net.canarymod.Canary;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.inventory.Inventory;
+import net.canarymod.api.inventory.Item;
+import net.canarymod.api.inventory.PlayerInventory;
+import net.canarymod.api.nbt.BaseTag;
+import net.canarymod.api.nbt.ByteArrayTag;
+import net.canarymod.api.nbt.ByteTag;
+import net.canarymod.api.nbt.CompoundTag;
+import net.canarymod.api.nbt.DoubleTag;
+import net.canarymod.api.nbt.FloatTag;
+import net.canarymod.api.nbt.IntArrayTag;
+import net.canarymod.api.nbt.IntTag;
+import net.canarymod.api.nbt.ListTag;
+import net.canarymod.api.nbt.LongTag;
+import net.canarymod.api.nbt.ShortTag;
+import net.canarymod.api.nbt.StringTag;
+import net.canarymod.api.potion.PotionEffect;
+import net.canarymod.api.statistics.Achievements;
+import net.canarymod.api.statistics.Statistics;
+import net.canarymod.logger.Logman;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LoggerContext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lightweight stand-ins for the Canary server so the serialization paths of PlayerStateManager can
+ * be measured without a running server. Every fake is a dynamic Proxy that stores what it is given
+ * and returns default values for anything else.
+ */
+final class Fakes {
+    private static final Map<Byte, Class<?>> TAG_TYPES = new HashMap<Byte, Class<?>>();
+    private static boolean installed;
+
+    static {
+        TAG_TYPES.put((byte) 1, ByteTag.class);
+        TAG_TYPES.put((byte) 2, ShortTag.class);
+        TAG_TYPES.put((byte) 3, IntTag.class);
+        TAG_TYPES.put((byte) 4, LongTag.class);
+        TAG_TYPES.put((byte) 5, FloatTag.class);
+        TAG_TYPES.put((byte) 6, DoubleTag.class);
+        TAG_TYPES.put((byte) 7, ByteArrayTag.class);
+        TAG_TYPES.put((byte) 8, StringTag.class);
+        TAG_TYPES.put((byte) 11, IntArrayTag.class);
+    }
+
+    private Fakes() {
+    }
+
+    /**
+     * Install a fake Canary instance whose factories and JSON utility are fakes, and a quiet
+     * PlayerState logger. Must be called before PlayerStateManager is loaded.
+     */
+    static synchronized void install() {
+        if (!installed) {
+            try {
+                final Canary canary = new Canary() {
+                };
+                final Class<?> factoryType = Canary.class.getMethod("factory").getReturnType();
+                final Class<?> jsonType = Canary.class.getMethod("jsonNBT").getReturnType();
+                setField(canary, factoryType, proxy(factoryType, new FactoryHandler()));
+                setField(canary, jsonType, proxy(jsonType, new JsonHandler()));
+                setField(null, Canary.class, canary);
+            } catch (final Exception e) {
+                throw new IllegalStateException("Unable to install the fake Canary", e);
+            }
+
+            PlayerStatePlugin.LOG = Logman.getLogman("PlayerState-Benchmark");
+            final LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
+            ctx.getConfiguration().getLoggerConfig(PlayerStatePlugin.LOG.getName())
+                    .setLevel(Level.OFF);
+            ctx.updateLoggers();
+
+            installed = true;
+        }
+    }
+
+    /**
+     * Create a Player with a full inventory, a full ender chest, armor, potion effects and non-zero
+     * statistics and achievements.
+     *
+     * @return The Player.
+     */
+    static Player player() {
+        final PlayerHandler handler = new PlayerHandler();
+        final Player player = proxy(Player.class, handler);
+
+        final Item[] contents = new Item[36];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = item("minecraft:diamond_sword", i, true);
+        }
+        handler.inventory.contents = contents;
+        final Item[] enderContents = new Item[27];
+        for (int i = 0; i < enderContents.length; i++) {
+            enderContents[i] = item("minecraft:cobblestone", i, false);
+        }
+        handler.enderInventory.contents = enderContents;
+        handler.inventory.properties.put("bootsslot", item("minecraft:diamond_boots", 0, true));
+        handler.inventory.properties.put("chestplateslot", item("minecraft:diamond_chestplate", 0,
+                true));
+        handler.inventory.properties.put("helmetslot", item("minecraft:diamond_helmet", 0, true));
+        handler.inventory.properties.put("leggingsslot", item("minecraft:diamond_leggings", 0,
+                true));
+
+        for (int i = 1; i <= 3; i++) {
+            player.addPotionEffect(Canary.factory().getPotionFactory().newPotionEffect(i, 600, 1,
+                    false));
+        }
+        int value = 1;
+        for (final Statistics statistics : Statistics.values()) {
+            player.setStat(statistics.getInstance(), value++);
+        }
+        for (final Achievements achievements : Achievements.values()) {
+            player.setStat(achievements.getInstance(), 1);
+        }
+        player.setHealth(17.5f);
+        player.setMaxHealth(20);
+        player.setHunger(18);
+        player.setExperience(1234);
+        player.setExhaustion(1.5f);
+        return player;
+    }
+
+    /**
+     * Create an Item that writes a realistic tag, optionally with enchantments and a custom name.
+     *
+     * @param id       The item id.
+     * @param slot     The inventory slot.
+     * @param enchants True to add enchantments and a display name.
+     * @return The Item.
+     */
+    static Item item(final String id, final int slot, final boolean enchants) {
+        final ItemHandler handler = new ItemHandler();
+        final CompoundTag tag = compound();
+        tag.put("id", id);
+        tag.put("Count", (byte) (enchants ? 1 : 64));
+        tag.put("Damage", (short) 0);
+        if (enchants) {
+            final CompoundTag extra = compound();
+            final ListTag<CompoundTag> list = list();
+            for (short i = 0; i < 3; i++) {
+                final CompoundTag enchant = compound();
+                enchant.put("id", (short) (16 + i));
+                enchant.put("lvl", (short) 5);
+                list.add(enchant);
+            }
+            extra.put("ench", list);
+            final CompoundTag display = compound();
+            display.put("Name", "Benchmark Blade of Slot " + slot);
+            extra.put("display", display);
+            tag.put("tag", extra);
+        }
+        handler.tag = tag;
+        handler.properties.put("slot", slot);
+        return proxy(Item.class, handler);
+    }
+
+    static CompoundTag compound() {
+        return proxy(CompoundTag.class, new CompoundHandler());
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E extends BaseTag> ListTag<E> list() {
+        return proxy(ListTag.class, new ListHandler());
+    }
+
+    private static BaseTag wrap(final Object value) {
+        final byte type;
+        if (value instanceof Byte) {
+            type = 1;
+        } else if (value instanceof Short) {
+            type = 2;
+        } else if (value instanceof Integer) {
+            type = 3;
+        } else if (value instanceof Long) {
+            type = 4;
+        } else if (value instanceof Float) {
+            type = 5;
+        } else if (value instanceof Double) {
+            type = 6;
+        } else if (value instanceof byte[]) {
+            type = 7;
+        } else if (value instanceof String) {
+            type = 8;
+        } else if (value instanceof int[]) {
+            type = 11;
+        } else if (value instanceof Boolean) {
+            return wrap((byte) (((Boolean) value) ? 1 : 0));
+        } else {
+            throw new IllegalArgumentException("Unsupported tag value: " + value);
+        }
+        return (BaseTag) proxy(TAG_TYPES.get(type), new ValueHandler(type, value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type},
+                handler);
+    }
+
+    private static void setField(final Object target, final Class<?> type, final Object value)
+            throws IllegalAccessException {
+        for (final Field field : Canary.class.getDeclaredFields()) {
+            if (field.getType() == type && Modifier.isStatic(field.getModifiers()) == (target
+                    == null)) {
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            }
+        }
+        throw new IllegalStateException("Canary has no field of type " + type.getName());
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Stores anything set through a setter and returns it from the matching getter.
+     */
+    private static class BeanHandler implements InvocationHandler {
+        protected final Map<String, Object> properties = new HashMap<String, Object>();
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            final int arity = args == null ? 0 : args.length;
+            if (name.equals("equals") && arity == 1) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode") && arity == 0) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString") && arity == 0) {
+                return getClass().getSimpleName() + properties;
+            } else if (name.startsWith("set") && arity == 1) {
+                properties.put(name.substring(3).toLowerCase(), args[0]);
+                return null;
+            } else if (name.startsWith("get") && arity == 0) {
+                return get(name.substring(3), method.getReturnType());
+            } else if (name.startsWith("is") && arity == 0) {
+                return get(name.substring(2), method.getReturnType());
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private Object get(final String property, final Class<?> type) {
+            final Object value = properties.get(property.toLowerCase());
+            return value != null ? value : defaultValue(type);
+        }
+    }
+
+    private static class PlayerHandler extends BeanHandler {
+        private final String uuid = UUID.randomUUID().toString();
+        private final Map<Object, Integer> stats = new HashMap<Object, Integer>();
+        private final List<PotionEffect> effects = new ArrayList<PotionEffect>();
+        private final InventoryHandler inventory = new InventoryHandler();
+        private final InventoryHandler enderInventory = new InventoryHandler();
+        private final PlayerInventory playerInventory = proxy(PlayerInventory.class, inventory);
+        private final Inventory enderChest = proxy(Inventory.class, enderInventory);
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if (name.equals("getUUIDString")) {
+                return uuid;
+            } else if (name.equals("getDisplayName") || name.equals("getName")) {
+                return "Benchmark";
+            } else if (name.equals("getStat")) {
+                final Integer value = stats.get(args[0]);
+                return value != null ? value : 0;
+            } else if (name.equals("setStat")) {
+                stats.put(args[0], (Integer) args[1]);
+                return null;
+            } else if (name.equals("getAllActivePotionEffects")) {
+                return new ArrayList<PotionEffect>(effects);
+            } else if (name.equals("addPotionEffect")) {
+                effects.add((PotionEffect) args[0]);
+                return null;
+            } else if (name.equals("removeAllPotionEffects")) {
+                effects.clear();
+                return null;
+            } else if (name.equals("getInventory")) {
+                return playerInventory;
+            } else if (name.equals("getEnderChestInventory")) {
+                return enderChest;
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private static class InventoryHandler extends BeanHandler {
+        private Item[] contents = new Item[0];
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if (name.equals("getContents")) {
+                return contents.clone();
+            } else if (name.equals("clearContents")) {
+                Arrays.fill(contents, null);
+                return null;
+            } else if (name.equals("getSize")) {
+                return contents.length;
+            } else if (name.equals("getSlot") && args != null && args.length == 1) {
+                return contents[(Integer) args[0]];
+            } else if (name.equals("setSlot") && args != null && args.length == 1
+                    && args[0] instanceof Item) {
+                final Item item = (Item) args[0];
+                contents[item.getSlot()] = item;
+                return null;
+            } else if (name.equals("setSlot") && args != null && args.length == 2
+                    && method.getParameterTypes()[1] == Item.class) {
+                contents[(Integer) args[0]] = (Item) args[1];
+                return null;
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private static class ItemHandler extends BeanHandler {
+        private CompoundTag tag;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if (name.equals("writeToTag")) {
+                final CompoundTag target = (CompoundTag) args[0];
+                for (final String key : tag.keySet()) {
+                    target.put(key, tag.get(key));
+                }
+                return target;
+            } else if (name.equals("readFromTag")) {
+                tag = (CompoundTag) args[0];
+                return null;
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    /**
+     * Creates fakes for whatever type a factory method returns.
+     */
+    private static class FactoryHandler implements InvocationHandler {
+        private final Map<Class<?>, Object> factories = new HashMap<Class<?>, Object>();
+        private final Map<String, Object> stats = new HashMap<String, Object>();
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            final Class<?> type = method.getReturnType();
+            if (name.endsWith("Factory") && (args == null || args.length == 0)) {
+                Object factory = factories.get(type);
+                if (factory == null) {
+                    factory = proxy(type, this);
+                    factories.put(type, factory);
+                }
+                return factory;
+            } else if (name.equals("newCompoundTag")) {
+                return compound();
+            } else if (name.equals("newListTag")) {
+                return list();
+            } else if (name.startsWith("new") && name.endsWith("Tag")) {
+                return wrap(args[args.length - 1]);
+            } else if (name.equals("newItem")) {
+                return proxy(Item.class, new ItemHandler());
+            } else if (name.equals("newPotionEffect")) {
+                final BeanHandler effect = new BeanHandler();
+                effect.properties.put("potionid", args[0]);
+                effect.properties.put("duration", args[1]);
+                effect.properties.put("amplifier", args[2]);
+                effect.properties.put("ambient", args[3]);
+                return proxy(type, effect);
+            } else if (name.equals("getStat") || name.equals("getAchievement")) {
+                Object stat = stats.get(args[0]);
+                if (stat == null) {
+                    final BeanHandler handler = new BeanHandler();
+                    handler.properties.put("name", args[0]);
+                    stat = proxy(type, handler);
+                    stats.put((String) args[0], stat);
+                }
+                return stat;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            return defaultValue(type);
+        }
+    }
+
+    private static class ValueHandler implements InvocationHandler {
+        private final byte type;
+        private final Object value;
+
+        private ValueHandler(final byte type, final Object value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("getTypeId")) {
+                return type;
+            } else if (name.equals("getValue")) {
+                return value;
+            } else if (name.equals("copy")) {
+                return proxy;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return String.valueOf(value);
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static class CompoundHandler implements InvocationHandler {
+        private final Map<String, BaseTag> values = new LinkedHashMap<String, BaseTag>();
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("getTypeId")) {
+                return (byte) 10;
+            } else if (name.equals("keySet")) {
+                return values.keySet();
+            } else if (name.equals("values")) {
+                return values.values();
+            } else if (name.equals("containsKey")) {
+                return values.containsKey(args[0]);
+            } else if (name.equals("isEmpty")) {
+                return values.isEmpty();
+            } else if (name.equals("remove")) {
+                values.remove(args[0]);
+                return null;
+            } else if (name.equals("put")) {
+                values.put((String) args[0], args[1] instanceof BaseTag ? (BaseTag) args[1]
+                        : wrap(args[1]));
+                return null;
+            } else if (name.equals("get") || name.equals("getCompoundTag")
+                    || name.equals("getListTag")) {
+                return values.get(args[0]);
+            } else if (name.startsWith("get") && args != null && args.length == 1) {
+                final BaseTag tag = values.get(args[0]);
+                if (tag == null) {
+                    return defaultValue(method.getReturnType());
+                }
+                final Object value = ((ValueHandler) Proxy.getInvocationHandler(tag)).value;
+                if (method.getReturnType() == int.class) {
+                    return ((Number) value).intValue();
+                }
+                return value;
+            } else if (name.equals("copy")) {
+                final CompoundTag copy = compound();
+                for (final Map.Entry<String, BaseTag> entry : values.entrySet()) {
+                    copy.put(entry.getKey(), entry.getValue());
+                }
+                return copy;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return values.toString();
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static class ListHandler implements InvocationHandler {
+        private final List<BaseTag> values = new ArrayList<BaseTag>();
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if (name.equals("getTypeId")) {
+                return (byte) 9;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (method.getDeclaringClass().isAssignableFrom(ArrayList.class)) {
+                try {
+                    return method.invoke(values, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Converts fake tags to and from JSON. Numbers are written without type suffixes like the
+     * Canary implementation, so integral values read back as ints.
+     */
+    private static class JsonHandler implements InvocationHandler {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("baseTagToJSON")) {
+                final StringBuilder sb = new StringBuilder();
+                write(sb, (BaseTag) args[0]);
+                return sb.toString();
+            } else if (name.equals("jsonToNBT")) {
+                return new JsonReader((String) args[0]).read();
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private void write(final StringBuilder sb, final BaseTag tag) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(tag);
+            if (handler instanceof CompoundHandler) {
+                sb.append('{');
+                boolean first = true;
+                for (final Map.Entry<String, BaseTag> entry : ((CompoundHandler) handler).values
+                        .entrySet()) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    writeString(sb, entry.getKey());
+                    sb.append(':');
+                    write(sb, entry.getValue());
+                }
+                sb.append('}');
+            } else if (handler instanceof ListHandler) {
+                sb.append('[');
+                boolean first = true;
+                for (final BaseTag element : ((ListHandler) handler).values) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    write(sb, element);
+                }
+                sb.append(']');
+            } else {
+                final Object value = ((ValueHandler) handler).value;
+                if (value instanceof String) {
+                    writeString(sb, (String) value);
+                } else if (value instanceof byte[]) {
+                    sb.append(Arrays.toString((byte[]) value).replace(" ", ""));
+                } else if (value instanceof int[]) {
+                    sb.append(Arrays.toString((int[]) value).replace(" ", ""));
+                } else {
+                    sb.append(value);
+                }
+            }
+        }
+
+        private void writeString(final StringBuilder sb, final String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+
+    private static class JsonReader {
+        private final String json;
+        private int pos;
+
+        private JsonReader(final String json) {
+            this.json = json;
+        }
+
+        private BaseTag read() {
+            final char c = json.charAt(pos);
+            if (c == '{') {
+                pos++;
+                final CompoundTag tag = compound();
+                while (json.charAt(pos) != '}') {
+                    final String key = readString();
+                    pos++; // :
+                    tag.put(key, read());
+                    if (json.charAt(pos) == ',') {
+                        pos++;
+                    }
+                }
+                pos++;
+                return tag;
+            } else if (c == '[') {
+                pos++;
+                final ListTag<BaseTag> list = list();
+                while (json.charAt(pos) != ']') {
+                    list.add(read());
+                    if (json.charAt(pos) == ',') {
+                        pos++;
+                    }
+                }
+                pos++;
+                return list;
+            } else if (c == '"') {
+                return wrap(readString());
+            } else {
+                final int start = pos;
+                while (pos < json.length() && ",}]".indexOf(json.charAt(pos)) < 0) {
+                    pos++;
+                }
+                final String number = json.substring(start, pos);
+                if (number.indexOf('.') >= 0 || number.indexOf('E') >= 0) {
+                    return wrap(Double.parseDouble(number));
+                }
+                return wrap(Integer.parseInt(number));
+            }
+        }
+
+        private String readString() {
+            final StringBuilder sb = new StringBuilder();
+            pos++;
+            char c;
+            while ((c = json.charAt(pos++)) != '"') {
+                if (c == '\\') {
+                    c = json.charAt(pos++);
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.api.SaveState;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.database.exceptions.DatabaseReadException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures restoring a full 36 slot inventory and 27 slot ender chest when the stored state differs
+ * from what the player holds in only a few slots, in about half of them, or in all of them. Each
+ * invocation switches between two saved states, so every restore changes exactly that many slots.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryRestoreBenchmark {
+    private static final SaveState[] SAVES = {SaveState.INVENTORY};
+    private static final int SLOTS = 36;
+    private static final int ENDER_SLOTS = 27;
+
+    @Param({"0", "4", "32", "63"})
+    public int changedSlots;
+
+    private PlayerStateManager manager;
+    private Player player;
+    private boolean flip;
+
+    @Setup
+    public void setUp() throws DatabaseReadException {
+        Fakes.install();
+        manager = new PlayerStateManager();
+        player = Fakes.player();
+        manager.savePlayerState(player, "a", SAVES);
+        // Spread the changes over both inventories
+        int slot = 0;
+        int enderSlot = 0;
+        for (int i = 0; i < changedSlots; i++) {
+            if (enderSlot == ENDER_SLOTS || (i % 2 == 0 && slot < SLOTS)) {
+                player.getInventory().setSlot(Fakes.item("minecraft:golden_apple", slot++,
+                        false));
+            } else {
+                player.getEnderChestInventory().setSlot(Fakes.item("minecraft:golden_apple",
+                        enderSlot++, false));
+            }
+        }
+        manager.savePlayerState(player, "b", SAVES);
+        // Decode both states up front, only the restore is measured
+        manager.loadPlayerState(player, "a", SAVES);
+        manager.loadPlayerState(player, "b", SAVES);
+    }
+
+    @Benchmark
+    public boolean restore() throws DatabaseReadException {
+        flip = !flip;
+        return manager.loadPlayerState(player, flip ? "a" : "b", SAVES);
+    }
+}
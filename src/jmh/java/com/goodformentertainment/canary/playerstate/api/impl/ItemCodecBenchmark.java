@@ -0,0 +1,80 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import net.canarymod.api.inventory.Item;
+import net.canarymod.api.nbt.CompoundTag;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding a full player inventory in each item format. The stored size of
+ * the inventory is reported next to the timings as the "chars" counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCodecBenchmark {
+    @Param({"json", "binary", "compressed"})
+    public String itemFormat;
+
+    private ItemCodec codec;
+    private List<CompoundTag> tags;
+    private List<String> data;
+    private int chars;
+
+    /**
+     * The stored size of the inventory, reported by JMH as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public int chars;
+    }
+
+    @Setup
+    public void setUp() {
+        Fakes.install();
+        codec = ItemCodec.forFormat(itemFormat);
+        tags = new ArrayList<CompoundTag>();
+        for (int i = 0; i < 36; i++) {
+            final Item item = Fakes.item("minecraft:diamond_sword", i, true);
+            final CompoundTag tag = Fakes.compound();
+            item.writeToTag(tag);
+            tag.put("slot", i);
+            tags.add(tag);
+        }
+        data = codec.encode(tags);
+        chars = 0;
+        for (final String s : data) {
+            chars += s == null ? 0 : s.length();
+        }
+    }
+
+    @Benchmark
+    public List<String> encode(final Size size) {
+        size.chars = chars;
+        return codec.encode(tags);
+    }
+
+    @Benchmark
+    public List<CompoundTag> decode(final Size size) {
+        size.chars = chars;
+        return codec.decode(data);
+    }
+}
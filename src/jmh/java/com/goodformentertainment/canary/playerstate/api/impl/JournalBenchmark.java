@@ -0,0 +1,132 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures appending a snapshot to the journal, which happens on the server Thread with every save,
+ * and recovering journals with tens of thousands of entries, which happens when the plugin is
+ * enabled after a crash.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class JournalBenchmark {
+    @Param({"10000", "50000"})
+    public int entries;
+
+    private File file;
+    private PlayerStateJournal journal;
+    private PlayerDao playerDao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("playerstate", ".journal");
+        journal = new PlayerStateJournal(file, new PlayerStateMetrics());
+        journal.open();
+        final List<PlayerDao> playerDaos = new ArrayList<PlayerDao>(entries);
+        for (int i = 0; i < entries; i++) {
+            // Each player has two states, so a quarter of the entries supersede earlier ones
+            playerDaos.add(playerDao(UUID.nameUUIDFromBytes(new byte[]{(byte) (i >> 2),
+                    (byte) (i >> 10), (byte) (i >> 18)}).toString(), "state" + (i & 1)));
+        }
+        for (final PlayerDao entry : playerDaos) {
+            journal.append(entry);
+        }
+        journal.close();
+        playerDao = playerDaos.get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public List<PlayerDao> recover() throws IOException {
+        final PlayerStateJournal recovering = new PlayerStateJournal(file,
+                new PlayerStateMetrics());
+        try {
+            return recovering.open();
+        } finally {
+            recovering.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void append(final AppendState state) {
+        state.journal.append(playerDao);
+    }
+
+    @State(Scope.Thread)
+    public static class AppendState {
+        private File file;
+        private PlayerStateJournal journal;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            file = File.createTempFile("playerstate-append", ".journal");
+            journal = new PlayerStateJournal(file, new PlayerStateMetrics());
+            journal.open();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            journal.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static PlayerDao playerDao(final String uuid, final String state) {
+        final PlayerDao playerDao = new PlayerDao();
+        playerDao.uuid = uuid;
+        playerDao.state = state;
+        playerDao.effects = Arrays.asList("1;600;1;false", "3;1200;0;false");
+        playerDao.health = 17.5f;
+        playerDao.hunger = 18;
+        playerDao.maxHealth = 20;
+        playerDao.experience = 1234;
+        playerDao.homeLocation = "0.5;64.0;0.5;0.0;0.0;0;world";
+        playerDao.spawnLocation = playerDao.homeLocation;
+        playerDao.location = "120.3;70.0;-45.7;12.0;90.0;0;world";
+        final char[] items = new char[2400];
+        Arrays.fill(items, 'A');
+        playerDao.inventory = Arrays.asList("nbt1:" + new String(items));
+        playerDao.enderInventory = Arrays.asList("nbt1:" + new String(items, 0, 1200));
+        playerDao.equipment = Arrays.asList("nbt1:" + new String(items, 0, 400));
+        playerDao.achievements = "achievement.openInventory=1;achievement.mineWood=1;";
+        playerDao.statistics = "stat.walkOneCm=123456;stat.jump=789;stat.playOneMinute=36000;";
+        return playerDao;
+    }
+}
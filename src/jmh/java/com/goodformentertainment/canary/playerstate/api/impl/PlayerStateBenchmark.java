@@ -0,0 +1,76 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.api.SaveState;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.database.exceptions.DatabaseReadException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures savePlayerState and loadPlayerState for each section on its own and for every section
+ * that does not need a world. Saves hit the cache, so these measure the serialization and restore
+ * work done on the server Thread, not the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerStateBenchmark {
+    private static final String STATE = "benchmark";
+
+    @Param({"json", "binary", "compressed"})
+    public String itemFormat;
+
+    @Param({"INVENTORY", "CONDITIONS", "STATISTICS", "ACHIEVEMENTS", "GAMEMODE", "ALL"})
+    public String section;
+
+    private PlayerStateManager manager;
+    private Player player;
+    private SaveState[] saves;
+
+    @Setup
+    public void setUp() {
+        Fakes.install();
+        manager = new PlayerStateManager();
+        manager.setItemFormat(itemFormat);
+        player = Fakes.player();
+        if (section.equals("ALL")) {
+            // Locations need a loaded world, so they are left out
+            saves = new SaveState[]{SaveState.ACHIEVEMENTS, SaveState.CONDITIONS,
+                    SaveState.GAMEMODE, SaveState.INVENTORY, SaveState.PREFIX,
+                    SaveState.STATISTICS};
+        } else {
+            saves = new SaveState[]{SaveState.valueOf(section)};
+        }
+        manager.savePlayerState(player, STATE, saves);
+    }
+
+    @Benchmark
+    public void save() {
+        manager.savePlayerState(player, STATE, saves);
+    }
+
+    @Benchmark
+    public boolean load() throws DatabaseReadException {
+        return manager.loadPlayerState(player, STATE, saves);
+    }
+
+    @Benchmark
+    public boolean roundTrip() throws DatabaseReadException {
+        manager.savePlayerState(player, STATE, saves);
+        return manager.loadPlayerState(player, STATE, saves);
+    }
+}
@@ -1,5 +1,6 @@
 package com.goodformentertainment.canary.playerstate;
 
+import com.goodformentertainment.canary.playerstate.api.SaveState;
 import net.canarymod.api.entity.living.humanoid.Player;
 import net.canarymod.database.Column;
 import net.canarymod.database.Column.DataType;
@@ -8,10 +9,29 @@ import net.canarymod.database.Database;
 import net.canarymod.database.exceptions.DatabaseReadException;
 import net.canarymod.database.exceptions.DatabaseWriteException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stored state of a player. The small sections are stored in this row; the inventories,
+ * statistics and achievements are stored in a {@link PlayerDataDao} row and only read when a load
+ * needs them. Each table is only written when one of its sections has changed.
+ * <p>
+ * Once published to the cache and the write-behind queue, a PlayerDao is shared without locks, and
+ * the values of its loaded sections are never modified; a newer save is made on a {@link #copy()}.
+ * Two things may still change. {@link #loadSections(SaveState[])} fills in the fields of large
+ * sections that were never loaded, under the lock of the PlayerDao, and only then adds them to the
+ * atomic loaded mask, so a reader that reads the mask first and only the fields of the loaded
+ * sections always sees them complete. And a flush records in the volatile stored flags which
+ * tables hold the rows and whether the row is still in the old layout; a stale flag only makes a
+ * later write touch a table it could have skipped.
+ */
 public class PlayerDao extends DataAccess {
     public static final String UUID = "uuid";
     public static final String STATE = "state";
@@ -33,22 +53,164 @@ public class PlayerDao extends DataAccess {
     public static final String ACHIEVEMENTS = "achievements";
     public static final String STATISTICS = "statistics";
 
+    /**
+     * The sections stored in the PlayerDataDao table rather than in the row of the PlayerDao.
+     */
+    public static final int DATA_SECTIONS = 1 << SaveState.INVENTORY.ordinal()
+            | 1 << SaveState.STATISTICS.ordinal() | 1 << SaveState.ACHIEVEMENTS.ordinal();
+    public static final int ALL_SECTIONS = (1 << SaveState.values().length) - 1;
+
     public static PlayerDao getPlayerDao(final Player player, final String state)
             throws DatabaseReadException {
+        return getPlayerDao(player.getUUIDString(), state);
+    }
+
+    /**
+     * Load a state without its large sections, which are read when first needed.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     * @return The PlayerDao, or null if the state is not stored.
+     * @throws DatabaseReadException If the row could not be read.
+     */
+    public static PlayerDao getPlayerDao(final String uuid, final String state)
+            throws DatabaseReadException {
         final PlayerDao playerDao = new PlayerDao();
         final Map<String, Object> filters = new HashMap<String, Object>();
-        filters.put(PlayerDao.UUID, player.getUUIDString());
+        filters.put(PlayerDao.UUID, uuid);
         filters.put(PlayerDao.STATE, state);
 
         Database.get().load(playerDao, filters);
 
         if (playerDao.hasData()) {
+            playerDao.loaded();
+            if (playerDao.legacyLayout) {
+                playerDao.adopt(PlayerDataDao.getPlayerDataDao(uuid, state), DATA_SECTIONS);
+            }
             return playerDao;
         } else {
             return null;
         }
     }
 
+    /**
+     * Load a state with the sections that are about to be applied.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     * @param saves The sections to read.
+     * @return The PlayerDao, or null if the state is not stored.
+     * @throws DatabaseReadException If the rows could not be read.
+     */
+    public static PlayerDao getPlayerDao(final String uuid, final String state,
+                                         final SaveState[] saves) throws DatabaseReadException {
+        final PlayerDao playerDao = getPlayerDao(uuid, state);
+        if (playerDao != null) {
+            playerDao.loadSections(saves);
+        }
+        return playerDao;
+    }
+
+    /**
+     * Load every state of a player, with all sections.
+     *
+     * @param uuid The UUID of the player.
+     * @return The PlayerDaos of the player.
+     * @throws DatabaseReadException If the rows could not be read.
+     */
+    public static List<PlayerDao> getPlayerDaos(final String uuid) throws DatabaseReadException {
+        final Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put(PlayerDao.UUID, uuid);
+        return loadAll(filters);
+    }
+
+    /**
+     * Get the UUID of every player with a stored state. Only the UUIDs are kept, so the rows can
+     * be read again one player at a time.
+     *
+     * @return The UUIDs.
+     * @throws DatabaseReadException If the rows could not be read.
+     */
+    public static Set<String> getPlayerUuids() throws DatabaseReadException {
+        final List<DataAccess> datasets = new ArrayList<DataAccess>();
+        Database.get().loadAll(new PlayerDao(), datasets, new HashMap<String, Object>());
+        final Set<String> uuids = new LinkedHashSet<String>();
+        for (final DataAccess dataset : datasets) {
+            uuids.add(((PlayerDao) dataset).uuid);
+        }
+        return uuids;
+    }
+
+    private static List<PlayerDao> loadAll(final Map<String, Object> filters)
+            throws DatabaseReadException {
+        final List<DataAccess> datasets = new ArrayList<DataAccess>();
+        Database.get().loadAll(new PlayerDao(), datasets, filters);
+
+        final List<PlayerDao> playerDaos = new ArrayList<PlayerDao>(datasets.size());
+        if (!datasets.isEmpty()) {
+            final Map<String, PlayerDataDao> playerDataDaos = PlayerDataDao.loadAll(filters);
+            for (final DataAccess dataset : datasets) {
+                final PlayerDao playerDao = (PlayerDao) dataset;
+                playerDao.loaded();
+                playerDao.adopt(playerDataDaos.get(playerDao.uuid + '\n' + playerDao.state),
+                        DATA_SECTIONS);
+                playerDaos.add(playerDao);
+            }
+        }
+        return playerDaos;
+    }
+
+    /**
+     * Write the changed sections of several stored states, batching the rows of each table into a
+     * single database operation. If this fails, none of the rows should be considered written.
+     *
+     * @param playerDaos The PlayerDaos to write, all of which must already be stored.
+     * @param sections   The sections changed in each PlayerDao, as bit masks of SaveState
+     *                   ordinals.
+     * @throws DatabaseReadException  If the stored sections that were never loaded could not be
+     *                                read.
+     * @throws DatabaseWriteException If the rows could not be written.
+     */
+    public static void updateAll(final List<PlayerDao> playerDaos, final List<Integer> sections)
+            throws DatabaseReadException, DatabaseWriteException {
+        final List<PlayerDataDao> dataRows = new ArrayList<PlayerDataDao>(playerDaos.size());
+        final Map<DataAccess, Map<String, Object>> updates =
+                new LinkedHashMap<DataAccess, Map<String, Object>>();
+        for (int i = 0; i < playerDaos.size(); i++) {
+            final PlayerDao playerDao = playerDaos.get(i);
+            if (playerDao.writesData(sections.get(i))) {
+                final PlayerDataDao playerDataDao = playerDao.toData();
+                if (playerDao.dataStored) {
+                    dataRows.add(playerDataDao);
+                } else {
+                    playerDataDao.update();
+                }
+            }
+            if (playerDao.writesCore(sections.get(i))) {
+                updates.put(playerDao, playerDao.getFilters());
+            }
+        }
+        // The large sections first, a row still in the old layout keeps them until then
+        if (!dataRows.isEmpty()) {
+            PlayerDataDao.updateAll(dataRows);
+        }
+        if (!updates.isEmpty()) {
+            Database.get().updateAll(new PlayerDao(), updates);
+        }
+        for (int i = 0; i < playerDaos.size(); i++) {
+            playerDaos.get(i).written(sections.get(i));
+        }
+    }
+
+    /**
+     * Check whether a player has no stored state at all. Reads one row of the player from this
+     * table only, which holds the small sections, never the inventories or statistics in the
+     * PlayerDataDao table. Canary has no count or exists query, so a row is still read.
+     *
+     * @param player The Player.
+     * @return True if the player has no stored state.
+     * @throws DatabaseReadException If the row could not be read.
+     */
     public static boolean isNewPlayer(final Player player) throws DatabaseReadException {
         boolean newPlayer = false;
 
@@ -115,25 +277,354 @@ public class PlayerDao extends DataAccess {
     @Column(columnName = SPAWN_LOCATION, dataType = DataType.STRING)
     public String spawnLocation;
 
-    @Column(columnName = ENDER_INVENTORY, dataType = DataType.STRING, isList = true)
+    // Stored in the PlayerDataDao table, and only valid once their sections are loaded
     public List<String> enderInventory;
+    public List<String> inventory;
+    public List<String> equipment;
+    public String achievements;
+    public String statistics;
+
+    // The columns the large sections were stored in before they moved to the PlayerDataDao table.
+    // They are kept in the layout so that rows not yet written again keep their data, are moved
+    // into the fields above on load, and are cleared by the next write of the row.
+
+    @Column(columnName = ENDER_INVENTORY, dataType = DataType.STRING, isList = true)
+    public List<String> legacyEnderInventory;
 
     @Column(columnName = INVENTORY, dataType = DataType.STRING, isList = true)
-    public List<String> inventory;
+    public List<String> legacyInventory;
 
     @Column(columnName = EQUIPMENT, dataType = DataType.STRING, isList = true)
-    public List<String> equipment;
+    public List<String> legacyEquipment;
 
     @Column(columnName = ACHIEVEMENTS, dataType = DataType.STRING)
-    public String achievements;
+    public String legacyAchievements;
 
     @Column(columnName = STATISTICS, dataType = DataType.STRING)
-    public String statistics;
+    public String legacyStatistics;
+
+    private final AtomicInteger dirtySections = new AtomicInteger();
+    private final AtomicInteger loadedSections = new AtomicInteger(ALL_SECTIONS);
+    private volatile boolean stored;
+    private volatile boolean dataStored;
+    private volatile boolean legacyLayout;
+    private long version;
+
+    /**
+     * Create the next version of this state. The copy shares the serialized values, which are never
+     * modified once a PlayerDao has been published, and starts with no changed sections.
+     *
+     * @return The new PlayerDao.
+     */
+    public PlayerDao copy() {
+        // Read before the fields, a section loaded meanwhile is only copied once it is complete
+        final int loaded = loadedSections.get();
+        final PlayerDao copy = new PlayerDao();
+        copy.uuid = uuid;
+        copy.state = state;
+        copy.age = age;
+        copy.effects = effects;
+        copy.exhaustion = exhaustion;
+        copy.experience = experience;
+        copy.health = health;
+        copy.homeLocation = homeLocation;
+        copy.hunger = hunger;
+        copy.location = location;
+        copy.maxHealth = maxHealth;
+        copy.gameMode = gameMode;
+        copy.prefix = prefix;
+        copy.spawnLocation = spawnLocation;
+        copy.enderInventory = enderInventory;
+        copy.inventory = inventory;
+        copy.equipment = equipment;
+        copy.achievements = achievements;
+        copy.statistics = statistics;
+        copy.loadedSections.set(loaded);
+        copy.stored = stored;
+        copy.dataStored = dataStored;
+        copy.legacyLayout = legacyLayout;
+        copy.version = version + 1;
+        return copy;
+    }
+
+    /**
+     * Get the version of this state. Each copy has a higher version than the PlayerDao it was
+     * copied from.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Mark a section as changed since it was last written.
+     *
+     * @param save The changed section.
+     */
+    public void markDirty(final SaveState save) {
+        markDirty(1 << save.ordinal());
+    }
+
+    /**
+     * Mark sections as changed since they were last written.
+     *
+     * @param sections A bit mask of SaveState ordinals.
+     */
+    public void markDirty(final int sections) {
+        int current;
+        do {
+            current = dirtySections.get();
+        } while (!dirtySections.compareAndSet(current, current | sections));
+    }
+
+    public void markAllDirty() {
+        markDirty((1 << SaveState.values().length) - 1);
+    }
+
+    public boolean isDirty() {
+        return dirtySections.get() != 0;
+    }
+
+    /**
+     * Get the sections changed since they were last written without clearing them.
+     *
+     * @return A bit mask of SaveState ordinals.
+     */
+    public int getDirtySections() {
+        return dirtySections.get();
+    }
+
+    /**
+     * Get and clear the sections changed since they were last written.
+     *
+     * @return A bit mask of SaveState ordinals.
+     */
+    public int takeDirtySections() {
+        return dirtySections.getAndSet(0);
+    }
+
+    /**
+     * Check whether a row for this state exists in the database.
+     *
+     * @return True if the state was read from or written to the database.
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * Check whether the row of this state still holds its large sections in the old columns. The
+     * next write moves them to the PlayerDataDao table.
+     *
+     * @return True if the row is in the old layout.
+     */
+    public boolean isLegacyLayout() {
+        return legacyLayout;
+    }
+
+    /**
+     * Get the sections whose fields hold the stored or saved values. The large sections are not
+     * loaded until a load applies them.
+     *
+     * @return A bit mask of SaveState ordinals.
+     */
+    public int getLoadedSections() {
+        return loadedSections.get();
+    }
+
+    /**
+     * Set the loaded sections of a state read back from somewhere other than the database.
+     *
+     * @param sections A bit mask of SaveState ordinals.
+     */
+    public void setLoadedSections(final int sections) {
+        loadedSections.set(sections);
+    }
+
+    /**
+     * Check whether sections are loaded.
+     *
+     * @param saves The sections.
+     * @return True if all of them are loaded.
+     */
+    public boolean isLoaded(final SaveState[] saves) {
+        final int sections = toSections(saves);
+        return (loadedSections.get() & sections) == sections;
+    }
+
+    /**
+     * Mark sections as loaded once their fields have been set, e.g. by a save.
+     *
+     * @param sections A bit mask of SaveState ordinals.
+     */
+    public void markLoaded(final int sections) {
+        int current;
+        do {
+            current = loadedSections.get();
+        } while (!loadedSections.compareAndSet(current, current | sections));
+    }
+
+    /**
+     * Read the stored sections that are not loaded yet. Sections already loaded are kept as they
+     * are, since they may hold a save that is not written yet.
+     *
+     * @param saves The sections needed.
+     * @return True if any sections were read.
+     * @throws DatabaseReadException If the sections could not be read.
+     */
+    public boolean loadSections(final SaveState[] saves) throws DatabaseReadException {
+        if (!isLoaded(saves)) {
+            synchronized (this) {
+                if (!isLoaded(saves)) {
+                    adopt(PlayerDataDao.getPlayerDataDao(uuid, state),
+                            DATA_SECTIONS & ~loadedSections.get());
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the changed sections of this state, each to the table that holds it.
+     *
+     * @param sections The changed sections, as a bit mask of SaveState ordinals.
+     * @throws DatabaseReadException  If the stored sections that were never loaded could not be
+     *                                read.
+     * @throws DatabaseWriteException If a row could not be written.
+     */
+    public void update(final int sections) throws DatabaseReadException, DatabaseWriteException {
+        // The large sections first, a row still in the old layout keeps them until then
+        if (writesData(sections)) {
+            toData().update();
+        }
+        if (writesCore(sections)) {
+            Database.get().update(this, getFilters());
+        }
+        written(sections);
+    }
+
+    /**
+     * Get the bit mask of sections.
+     *
+     * @param saves The sections.
+     * @return A bit mask of SaveState ordinals.
+     */
+    public static int toSections(final SaveState[] saves) {
+        int sections = 0;
+        for (final SaveState save : saves) {
+            sections |= 1 << save.ordinal();
+        }
+        return sections;
+    }
+
+    private static boolean contains(final int sections, final SaveState save) {
+        return (sections & 1 << save.ordinal()) != 0;
+    }
+
+    /**
+     * Finish a row just read, moving any large sections still in the old columns into the fields.
+     */
+    private void loaded() {
+        stored = true;
+        if (legacyEnderInventory != null || legacyInventory != null || legacyEquipment != null
+                || legacyAchievements != null || legacyStatistics != null) {
+            enderInventory = legacyEnderInventory;
+            inventory = legacyInventory;
+            equipment = legacyEquipment;
+            achievements = legacyAchievements;
+            statistics = legacyStatistics;
+            legacyEnderInventory = null;
+            legacyInventory = null;
+            legacyEquipment = null;
+            legacyAchievements = null;
+            legacyStatistics = null;
+            legacyLayout = true;
+            loadedSections.set(ALL_SECTIONS);
+        } else {
+            loadedSections.set(ALL_SECTIONS & ~DATA_SECTIONS);
+        }
+    }
+
+    /**
+     * Take sections from a stored data row. A row written before a crash could clear the old
+     * columns is newer than them, so it wins.
+     *
+     * @param playerDataDao The stored row, or null if none of the sections were ever saved.
+     * @param sections      The sections to take.
+     */
+    private void adopt(final PlayerDataDao playerDataDao, final int sections) {
+        if (playerDataDao != null) {
+            dataStored = true;
+            if (contains(sections, SaveState.INVENTORY)) {
+                enderInventory = playerDataDao.enderInventory;
+                inventory = playerDataDao.inventory;
+                equipment = playerDataDao.equipment;
+            }
+            if (contains(sections, SaveState.STATISTICS)) {
+                statistics = playerDataDao.statistics;
+            }
+            if (contains(sections, SaveState.ACHIEVEMENTS)) {
+                achievements = playerDataDao.achievements;
+            }
+        }
+        markLoaded(sections);
+    }
+
+    private boolean writesData(final int sections) {
+        return (sections & DATA_SECTIONS) != 0 || legacyLayout;
+    }
+
+    private boolean writesCore(final int sections) {
+        return (sections & ~DATA_SECTIONS) != 0 || legacyLayout || !stored;
+    }
+
+    /**
+     * Build the data row to write. Sections this state never loaded keep their stored values.
+     */
+    private PlayerDataDao toData() throws DatabaseReadException {
+        final int loaded = loadedSections.get();
+        PlayerDataDao playerDataDao = null;
+        if ((loaded & DATA_SECTIONS) != DATA_SECTIONS) {
+            playerDataDao = PlayerDataDao.getPlayerDataDao(uuid, state);
+            if (playerDataDao != null) {
+                dataStored = true;
+            }
+        }
+        if (playerDataDao == null) {
+            playerDataDao = new PlayerDataDao();
+            playerDataDao.uuid = uuid;
+            playerDataDao.state = state;
+        }
+        if (contains(loaded, SaveState.INVENTORY)) {
+            playerDataDao.enderInventory = enderInventory;
+            playerDataDao.inventory = inventory;
+            playerDataDao.equipment = equipment;
+        }
+        if (contains(loaded, SaveState.STATISTICS)) {
+            playerDataDao.statistics = statistics;
+        }
+        if (contains(loaded, SaveState.ACHIEVEMENTS)) {
+            playerDataDao.achievements = achievements;
+        }
+        return playerDataDao;
+    }
+
+    private void written(final int sections) {
+        if (writesData(sections)) {
+            dataStored = true;
+        }
+        if (writesCore(sections)) {
+            stored = true;
+            legacyLayout = false;
+        }
+    }
 
-    public void update() throws DatabaseWriteException {
+    private Map<String, Object> getFilters() {
         final Map<String, Object> filters = new HashMap<String, Object>();
         filters.put(PlayerDao.UUID, uuid);
         filters.put(PlayerDao.STATE, state);
-        Database.get().update(this, filters);
+        return filters;
     }
 }
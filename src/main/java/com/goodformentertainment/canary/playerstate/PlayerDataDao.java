@@ -0,0 +1,111 @@
+package com.goodformentertainment.canary.playerstate;
+
+import net.canarymod.database.Column;
+import net.canarymod.database.Column.DataType;
+import net.canarymod.database.DataAccess;
+import net.canarymod.database.Database;
+import net.canarymod.database.exceptions.DatabaseReadException;
+import net.canarymod.database.exceptions.DatabaseWriteException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The large sections of a stored state, the inventories, statistics and achievements, kept in a
+ * table of their own so that loads which do not apply them never read them. Every state with any
+ * of these sections saved has a row here next to its PlayerDao row.
+ */
+public class PlayerDataDao extends DataAccess {
+    static PlayerDataDao getPlayerDataDao(final String uuid, final String state)
+            throws DatabaseReadException {
+        final PlayerDataDao playerDataDao = new PlayerDataDao();
+        final Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put(PlayerDao.UUID, uuid);
+        filters.put(PlayerDao.STATE, state);
+
+        Database.get().load(playerDataDao, filters);
+
+        return playerDataDao.hasData() ? playerDataDao : null;
+    }
+
+    /**
+     * Load the rows matching the filters.
+     *
+     * @param filters The filters, on the uuid and state columns.
+     * @return The rows, keyed by uuid and state.
+     * @throws DatabaseReadException If the rows could not be read.
+     */
+    static Map<String, PlayerDataDao> loadAll(final Map<String, Object> filters)
+            throws DatabaseReadException {
+        final List<DataAccess> datasets = new ArrayList<DataAccess>();
+        Database.get().loadAll(new PlayerDataDao(), datasets, filters);
+
+        final Map<String, PlayerDataDao> playerDataDaos =
+                new HashMap<String, PlayerDataDao>(datasets.size() * 2);
+        for (final DataAccess dataset : datasets) {
+            final PlayerDataDao playerDataDao = (PlayerDataDao) dataset;
+            playerDataDaos.put(playerDataDao.uuid + '\n' + playerDataDao.state, playerDataDao);
+        }
+        return playerDataDaos;
+    }
+
+    /**
+     * Update several existing rows in a single database operation.
+     *
+     * @param playerDataDaos The rows to write, all of which must already exist.
+     * @throws DatabaseWriteException If the rows could not be written.
+     */
+    static void updateAll(final List<PlayerDataDao> playerDataDaos)
+            throws DatabaseWriteException {
+        final Map<DataAccess, Map<String, Object>> updates =
+                new LinkedHashMap<DataAccess, Map<String, Object>>();
+        for (final PlayerDataDao playerDataDao : playerDataDaos) {
+            updates.put(playerDataDao, playerDataDao.getFilters());
+        }
+        Database.get().updateAll(new PlayerDataDao(), updates);
+    }
+
+    public PlayerDataDao() {
+        super("playerstate_player_data");
+    }
+
+    @Override
+    public PlayerDataDao getInstance() {
+        return new PlayerDataDao();
+    }
+
+    @Column(columnName = PlayerDao.UUID, dataType = DataType.STRING)
+    public String uuid;
+
+    @Column(columnName = PlayerDao.STATE, dataType = DataType.STRING)
+    public String state;
+
+    @Column(columnName = PlayerDao.ENDER_INVENTORY, dataType = DataType.STRING, isList = true)
+    public List<String> enderInventory;
+
+    @Column(columnName = PlayerDao.INVENTORY, dataType = DataType.STRING, isList = true)
+    public List<String> inventory;
+
+    @Column(columnName = PlayerDao.EQUIPMENT, dataType = DataType.STRING, isList = true)
+    public List<String> equipment;
+
+    @Column(columnName = PlayerDao.ACHIEVEMENTS, dataType = DataType.STRING)
+    public String achievements;
+
+    @Column(columnName = PlayerDao.STATISTICS, dataType = DataType.STRING)
+    public String statistics;
+
+    void update() throws DatabaseWriteException {
+        Database.get().update(this, getFilters());
+    }
+
+    private Map<String, Object> getFilters() {
+        final Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put(PlayerDao.UUID, uuid);
+        filters.put(PlayerDao.STATE, state);
+        return filters;
+    }
+}
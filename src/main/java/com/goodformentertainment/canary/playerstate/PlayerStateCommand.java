@@ -1,7 +1,7 @@
 package com.goodformentertainment.canary.playerstate;
 
-import com.goodformentertainment.canary.playerstate.api.IPlayerStateManager;
 import com.goodformentertainment.canary.playerstate.api.SaveState;
+import com.goodformentertainment.canary.playerstate.api.impl.PlayerStateManager;
 import net.canarymod.Canary;
 import net.canarymod.api.entity.living.humanoid.Player;
 import net.canarymod.chat.MessageReceiver;
@@ -15,10 +15,13 @@ public class PlayerStateCommand implements CommandListener {
             SaveState.CONDITIONS, SaveState.INVENTORY, SaveState.LOCATIONS
     };
 
-    private final IPlayerStateManager manager;
+    private final PlayerStateManager manager;
+    private final PlayerTransitions transitions;
 
-    public PlayerStateCommand(final IPlayerStateManager manager) {
+    public PlayerStateCommand(final PlayerStateManager manager,
+            final PlayerTransitions transitions) {
         this.manager = manager;
+        this.transitions = transitions;
     }
 
     @Command(aliases = {
@@ -64,10 +67,34 @@ public class PlayerStateCommand implements CommandListener {
         }
         if (player != null) {
             final String state = parameters[1];
+            // Manual states may have been changed outside of this server, always read them fresh
+            manager.invalidatePlayerState(player, state);
             manager.loadPlayerState(player, state, saves);
             // TODO
             // manager.restorePlayerLocation(player, state);
             caller.message("Changed " + player.getDisplayName() + " current state to " + state);
         }
     }
+
+    @Command(aliases = {
+            "stats"
+    }, parent = "playerstate", description = "Show player state persistence statistics", permissions = {
+            "playerstate.command.stats"
+    }, toolTip = "/playerstate <stats>", min = 1, max = 1)
+    public void statsCommand(final MessageReceiver caller, final String[] parameters) {
+        for (final String line : manager.getMetrics().describe()) {
+            caller.message(line);
+        }
+        caller.message(transitions.describe());
+    }
+
+    @Command(aliases = {
+            "migrate"
+    }, parent = "playerstate", description = "Convert stored items to the configured format", permissions = {
+            "playerstate.command.migrate"
+    }, toolTip = "/playerstate <migrate>", min = 1, max = 1)
+    public void migrateCommand(final MessageReceiver caller, final String[] parameters) {
+        manager.migrateItemFormat();
+        caller.message("Migrating stored items, see the server log for the result");
+    }
 }
@@ -1,5 +1,6 @@
 package com.goodformentertainment.canary.playerstate;
 
+import com.goodformentertainment.canary.playerstate.api.IPlayerStateManager;
 import com.goodformentertainment.canary.playerstate.api.IWorldStateManager;
 import com.goodformentertainment.canary.playerstate.api.SaveState;
 import net.canarymod.api.world.World;
@@ -61,6 +62,66 @@ public class PlayerStateConfiguration {
         return saves.toArray(new SaveState[saves.size()]);
     }
 
+    public long getCacheMegabytes() {
+        return cfg.getLong("cache.maxMegabytes", 64);
+    }
+
+    public int getMaxBatchSize() {
+        return cfg.getInt("flush.maxBatchSize", 100);
+    }
+
+    public long getFlushIntervalSeconds() {
+        return cfg.getLong("flush.intervalSeconds", IPlayerStateManager.SAVE_DELAY_SECONDS);
+    }
+
+    public long getFlushMaxAgeSeconds() {
+        return cfg.getLong("flush.maxAgeSeconds", 60);
+    }
+
+    public int getFlushThreshold() {
+        return cfg.getInt("flush.threshold", 200);
+    }
+
+    public long getSlowFlushMillis() {
+        return cfg.getLong("flush.slowMillis", 2000);
+    }
+
+    public long getMaxBackoffSeconds() {
+        return cfg.getLong("flush.maxBackoffSeconds", 120);
+    }
+
+    public int getFlushLanes() {
+        return cfg.getInt("flush.lanes", 2);
+    }
+
+    public int getEncodeThreads() {
+        return cfg.getInt("encode.threads", 2);
+    }
+
+    public boolean isJournalEnabled() {
+        return cfg.getBoolean("journal.enabled", true);
+    }
+
+    public long getShutdownDeadlineSeconds() {
+        return cfg.getLong("shutdown.deadlineSeconds", 10);
+    }
+
+    public long getTickBudgetMillis() {
+        return cfg.getLong("restore.tickBudgetMillis", 5);
+    }
+
+    public long getDebounceMillis() {
+        return cfg.getLong("transitions.debounceMillis", 3000);
+    }
+
+    public long getTransitionExpirySeconds() {
+        return cfg.getLong("transitions.expirySeconds", 300);
+    }
+
+    public String getItemFormat() {
+        return cfg.getString("items.format", "json");
+    }
+
     public String getLoggingLevel() {
         String level = null;
         final String key = "log.level";
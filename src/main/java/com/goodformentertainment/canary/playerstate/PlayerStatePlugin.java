@@ -2,11 +2,6 @@ package com.goodformentertainment.canary.playerstate;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.Level;
@@ -17,7 +12,6 @@ import org.apache.logging.log4j.core.config.LoggerConfig;
 
 import com.goodformentertainment.canary.playerstate.api.IPlayerStateManager;
 import com.goodformentertainment.canary.playerstate.api.IWorldStateManager;
-import com.goodformentertainment.canary.playerstate.api.SaveState;
 import com.goodformentertainment.canary.playerstate.api.impl.PlayerStateManager;
 import com.goodformentertainment.canary.playerstate.api.impl.WorldStateManager;
 import com.goodformentertainment.canary.playerstate.hook.WorldDeathHook;
@@ -36,10 +30,15 @@ import net.canarymod.commandsys.CommandDependencyException;
 import net.canarymod.database.exceptions.DatabaseReadException;
 import net.canarymod.database.exceptions.DatabaseWriteException;
 import net.canarymod.hook.HookHandler;
+import net.canarymod.hook.player.BlockPlaceHook;
 import net.canarymod.hook.player.ConnectionHook;
 import net.canarymod.hook.player.DisconnectionHook;
+import net.canarymod.hook.player.ItemDropHook;
+import net.canarymod.hook.player.ItemPickupHook;
+import net.canarymod.hook.player.ItemUseHook;
 import net.canarymod.hook.player.PlayerDeathHook;
 import net.canarymod.hook.player.PlayerRespawnedHook;
+import net.canarymod.hook.player.SlotClickHook;
 import net.canarymod.hook.player.TeleportHook;
 import net.canarymod.logger.Logman;
 import net.canarymod.plugin.Plugin;
@@ -51,11 +50,12 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
     private static final int MULTIPLAYER_SPAWN_RADIUS = 16;
     private static final long TELEPORT_DELAY_SECONDS = 3;
     private static final int TELEPORT_DISTANCE_FUDGE = 1;
+    private static final int TRANSITION_EXPIRY_TICKS = 20 * 60;
 
     public static Logman LOG;
 
-    private static final IWorldStateManager worldStateManager = new WorldStateManager();
-    private static final IPlayerStateManager manager = new PlayerStateManager();
+    private static final WorldStateManager worldStateManager = new WorldStateManager();
+    private static final PlayerStateManager manager = new PlayerStateManager();
 
     /**
      * Get the WorldStateManager from the PlayerStatePlugin.
@@ -77,11 +77,10 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
 
     private PlayerStateConfiguration config;
     private PlayerStateCommand command;
+    private volatile WorldStateTable worldStates;
 
-    private Collection<String> connectingPlayers;
-    private Map<String, WorldExitHook> exitingPlayers;
-    private Map<String, Location> deadPlayers;
-    private Map<String, Location> finalLocations;
+    private PlayerTransitions transitions;
+    private ServerTask expireTransitions;
 
     public PlayerStatePlugin() {
         PlayerStatePlugin.LOG = getLogman();
@@ -99,16 +98,53 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
 
         config = new PlayerStateConfiguration(this);
         setLoggingLevel(config.getLoggingLevel());
+        manager.setCacheSize(config.getCacheMegabytes() * 1024L * 1024L);
+        manager.setItemFormat(config.getItemFormat());
+        manager.setMaxBatchSize(config.getMaxBatchSize());
+        manager.setFlushLanes(config.getFlushLanes());
+        manager.setEncodeThreads(config.getEncodeThreads());
+        manager.setTaskOwner(this);
+        manager.setTickBudget(config.getTickBudgetMillis());
+        manager.setDebounce(config.getDebounceMillis());
+        manager.setFlushSchedule(config.getFlushIntervalSeconds() * 1000L,
+                config.getFlushMaxAgeSeconds() * 1000L, config.getFlushThreshold(),
+                config.getSlowFlushMillis(), config.getMaxBackoffSeconds() * 1000L);
 
         LOG.info("Enabling " + getName() + " Version " + getVersion());
         LOG.info("Authored by " + getAuthor());
 
-        connectingPlayers = Collections.synchronizedCollection(new HashSet<String>());
-        exitingPlayers = Collections.synchronizedMap(new HashMap<String, WorldExitHook>());
-        deadPlayers = Collections.synchronizedMap(new HashMap<String, Location>());
-        finalLocations = Collections.synchronizedMap(new HashMap<String, Location>());
+        transitions = new PlayerTransitions(config.getTransitionExpirySeconds() * 1000L);
+        expireTransitions = new ServerTask(this, TRANSITION_EXPIRY_TICKS, true) {
+            @Override
+            public void run() {
+                final int expired = transitions.expire();
+                if (expired > 0) {
+                    LOG.debug("Dropped " + expired + " stale player transitions");
+                }
+            }
+        };
+        Canary.getServer().addSynchronousTask(expireTransitions);
+
+        command = new PlayerStateCommand(manager, transitions);
 
-        command = new PlayerStateCommand(manager);
+        worldStateManager.setListener(new Runnable() {
+            @Override
+            public void run() {
+                rebuildWorldStates();
+            }
+        });
+        rebuildWorldStates();
+
+        manager.setShutdownDeadline(config.getShutdownDeadlineSeconds() * 1000L);
+        try {
+            final int recovered = manager.openJournal(new File("config/PlayerState",
+                    "playerstate.journal"), config.isJournalEnabled());
+            if (recovered > 0) {
+                LOG.info("Recovered " + recovered + " unsaved player states from the journal");
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to open the journal, unsaved states will not survive a crash", e);
+        }
 
         manager.startSaveThread();
 
@@ -130,15 +166,16 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
 
         Canary.commands().unregisterCommands(this);
         Canary.hooks().unregisterPluginListeners(this);
+        Canary.getServer().removeSynchronousTask(expireTransitions);
         manager.stopSaveThread();
+        worldStateManager.setListener(null);
 
         config = null;
         command = null;
+        worldStates = null;
 
-        connectingPlayers = null;
-        exitingPlayers = null;
-        deadPlayers = null;
-        finalLocations = null;
+        transitions = null;
+        expireTransitions = null;
     }
 
     @HookHandler
@@ -148,6 +185,8 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
         final World world = player.getWorld();
         final Location toLoc = player.getLocation();
 
+        manager.prefetchPlayer(player);
+
         new WorldEnterHook(player, world, null, toLoc).call();
 
         if (hook.isFirstConnection()) {
@@ -156,7 +195,7 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
             }
         }
 
-        connectingPlayers.add(player.getUUIDString());
+        transitions.connecting(player.getUUIDString());
     }
 
     @HookHandler
@@ -169,12 +208,18 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
         // manager.savePlayerState(player, state, getSaves(state));
 
         new WorldExitHook(player, world, fromLoc, null).call();
+
+        // Whatever the player was part way through will never finish
+        transitions.purge(player.getUUIDString());
+        manager.unloadPlayer(player);
     }
 
     @HookHandler
     public void onDeath(final PlayerDeathHook hook) {
         final Player player = hook.getPlayer();
-        deadPlayers.put(player.getUUIDString(), player.getLocation());
+        // Drop the restored inventory, not the one it is replacing
+        manager.completeRestore(player);
+        transitions.died(player.getUUIDString(), player.getLocation());
 
         LOG.debug("Player " + player.getName() + " died at: " + player.getLocation());
     }
@@ -186,8 +231,9 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
 
         LOG.info("Player " + player.getName() + " respawned at: " + hook.getLocation());
 
-        if (exitingPlayers.containsKey(uuid)) {
-            final WorldEnterHook worldEnter = new WorldEnterHook(exitingPlayers.remove(uuid));
+        final WorldExitHook worldExit = transitions.takeExit(uuid);
+        if (worldExit != null) {
+            final WorldEnterHook worldEnter = new WorldEnterHook(worldExit);
             if (worldEnter.getWorld() == player.getWorld()) {
                 worldEnter.call();
             } else {
@@ -196,7 +242,7 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
             }
         }
 
-        final Location finalLoc = finalLocations.remove(uuid);
+        final Location finalLoc = transitions.takeRespawn(uuid);
         if (finalLoc != null) {
             Canary.getServer().addSynchronousTask(new ServerTask(this, 10) {
                 @Override
@@ -207,6 +253,43 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
         }
     }
 
+    // A loaded inventory may take a few ticks to be applied, the old one must not be used meanwhile
+
+    @HookHandler
+    public void onSlotClick(final SlotClickHook hook) {
+        if (manager.isRestoringInventory(hook.getPlayer())) {
+            hook.setCanceled();
+        }
+    }
+
+    @HookHandler
+    public void onItemDrop(final ItemDropHook hook) {
+        if (manager.isRestoringInventory(hook.getPlayer())) {
+            hook.setCanceled();
+        }
+    }
+
+    @HookHandler
+    public void onItemPickup(final ItemPickupHook hook) {
+        if (manager.isRestoringInventory(hook.getPlayer())) {
+            hook.setCanceled();
+        }
+    }
+
+    @HookHandler
+    public void onItemUse(final ItemUseHook hook) {
+        if (manager.isRestoringInventory(hook.getPlayer())) {
+            hook.setCanceled();
+        }
+    }
+
+    @HookHandler
+    public void onBlockPlace(final BlockPlaceHook hook) {
+        if (manager.isRestoringInventory(hook.getPlayer())) {
+            hook.setCanceled();
+        }
+    }
+
     @HookHandler
     public void onTeleport(final TeleportHook hook) {
         final Player player = hook.getPlayer();
@@ -232,28 +315,27 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
                     final WorldExitHook worldExit = new WorldExitHook(player, curLoc.getWorld(),
                             curLoc, destination);
                     worldExit.call();
-                    exitingPlayers.put(uuid, worldExit);
+                    transitions.exiting(uuid, worldExit);
                 }
                 break;
             case RESPAWN:
                 // if (curLoc.equals(destination)) {
                 // LOG.info(" CURLOC == DEST");
                 // }
-                if (connectingPlayers.remove(uuid)) {
+                final Location deadLoc;
+                if (transitions.takeConnecting(uuid)) {
                     LOG.debug("  CONNECTING");
-                } else if (exitingPlayers.containsKey(uuid)) {
+                } else if (transitions.isExiting(uuid)) {
                     LOG.debug("  EXITING");
-                } else if (deadPlayers.containsKey(uuid)) {
+                } else if ((deadLoc = transitions.takeDeath(uuid)) != null) {
                     LOG.debug("  ISDEAD");
 
-                    final Location deadLoc = deadPlayers.remove(uuid);
-
                     final WorldDeathHook worldDeath = new WorldDeathHook(player, deadLoc,
                             destination);
                     worldDeath.call();
                     if (!destination.equals(worldDeath.getSpawnLocation())) {
                         LOG.debug("  OVERRIDESPAWN");
-                        finalLocations.put(uuid, worldDeath.getSpawnLocation());
+                        transitions.respawning(uuid, worldDeath.getSpawnLocation());
                     }
 
                     if (isBedRespawn(destination)) {
@@ -267,7 +349,7 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
                                 final WorldExitHook worldExit = new WorldExitHook(player,
                                         deadLoc.getWorld(), deadLoc, destination);
                                 worldExit.call();
-                                exitingPlayers.put(uuid, worldExit);
+                                transitions.exiting(uuid, worldExit);
                             }
                         } else {
                             LOG.debug("    MISSING");
@@ -277,7 +359,7 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
                                         deadLoc.getWorld(), deadLoc,
                                         destination.getWorld().getSpawnLocation());
                                 worldExit.call();
-                                exitingPlayers.put(uuid, worldExit);
+                                transitions.exiting(uuid, worldExit);
                             }
 
                             hook.setCanceled();
@@ -295,7 +377,7 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
                                     deadLoc.getWorld(), deadLoc,
                                     destination.getWorld().getSpawnLocation());
                             worldExit.call();
-                            exitingPlayers.put(uuid, worldExit);
+                            transitions.exiting(uuid, worldExit);
                         }
 
                         if (config.exactSpawn()) {
@@ -319,24 +401,24 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
             throws DatabaseReadException, DatabaseWriteException {
         final Player player = hook.getPlayer();
         final World toWorld = hook.getToLocation().getWorld();
-        final String toState = getState(toWorld);
-        String fromState = null;
+        final WorldStateTable.Entry to = getWorldState(toWorld);
+        WorldStateTable.Entry from = null;
         if (hook.getFromLocation() != null) {
-            fromState = getState(hook.getFromLocation().getWorld());
+            from = getWorldState(hook.getFromLocation().getWorld());
         }
 
         player.message(ChatFormat.GRAY + "Entered world " + hook.getWorld().getName());
 
-        if (fromState != null) {
+        if (from != null) {
             // Not player login, load the player state
-            if (!toState.equals(fromState)) {
-                if (manager.loadPlayerState(player, toState, getSaves(toState))) {
-                    player.message(ChatFormat.GOLD + "Loaded state " + toState);
+            if (!to.state.equals(from.state)) {
+                if (manager.loadPlayerStateOverTicks(player, to.state, to.saves)) {
+                    player.message(ChatFormat.GOLD + "Loaded state " + to.state);
                 } else {
                     player.setSpawnPosition(toWorld.getSpawnLocation());
-                    manager.savePlayerState(player, toState, getSaves(toState));
+                    manager.savePlayerState(player, to.state, to.saves);
                     // manager.setPlayerSpawnLocation(player, toState, toWorld.getSpawnLocation());
-                    player.message(ChatFormat.GOLD + "Entering state " + toState);
+                    player.message(ChatFormat.GOLD + "Entering state " + to.state);
                 }
             }
         }
@@ -345,17 +427,17 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
     @HookHandler
     public void onWorldExit(final WorldExitHook hook) throws DatabaseWriteException {
         final Player player = hook.getPlayer();
-        final String fromState = getState(hook.getFromLocation().getWorld());
-        String toState = null;
+        final WorldStateTable.Entry from = getWorldState(hook.getFromLocation().getWorld());
+        WorldStateTable.Entry to = null;
         if (hook.getToLocation() != null) {
-            toState = getState(hook.getToLocation().getWorld());
+            to = getWorldState(hook.getToLocation().getWorld());
         }
 
         player.message(ChatFormat.GRAY + "Exited world " + hook.getWorld().getName());
 
-        if (!fromState.equals(toState)) {
-            manager.savePlayerState(player, fromState, getSaves(fromState));
-            player.message(ChatFormat.GOLD + "Saved state " + fromState);
+        if (to == null || !from.state.equals(to.state)) {
+            manager.savePlayerStateDebounced(player, from.state, from.saves);
+            player.message(ChatFormat.GOLD + "Saved state " + from.state);
         }
     }
 
@@ -381,20 +463,30 @@ public class PlayerStatePlugin extends Plugin implements PluginListener {
         }, TELEPORT_DELAY_SECONDS, TimeUnit.SECONDS);
     }
 
-    private String getState(final World world) {
-        String state = worldStateManager.getManagedWorldState(world);
-        if (state == null) {
-            state = config.getState(world);
+    private WorldStateTable.Entry getWorldState(final World world) {
+        WorldStateTable.Entry entry = worldStates.get(world);
+        if (entry == null) {
+            entry = addWorldState(world);
+        }
+        return entry;
+    }
+
+    private synchronized WorldStateTable.Entry addWorldState(final World world) {
+        // A world loaded after the table was built
+        WorldStateTable.Entry entry = worldStates.get(world);
+        if (entry == null) {
+            final WorldStateTable table = worldStates.with(world);
+            worldStates = table;
+            entry = table.get(world);
         }
-        return state;
+        return entry;
     }
 
-    private SaveState[] getSaves(final String state) {
-        SaveState[] saves = worldStateManager.getManagedStateSaves(state);
-        if (saves == null) {
-            saves = config.getSaves(state);
+    private synchronized void rebuildWorldStates() {
+        if (config != null) {
+            worldStates = WorldStateTable.build(config, worldStateManager,
+                    Canary.getServer().getWorldManager().getAllWorlds());
         }
-        return saves;
     }
 
     private boolean isBedRespawn(final Location loc) {
@@ -0,0 +1,196 @@
+package com.goodformentertainment.canary.playerstate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.goodformentertainment.canary.playerstate.hook.WorldExitHook;
+
+import net.canarymod.api.world.position.Location;
+
+/**
+ * Tracks the players that are part way through connecting, dying, respawning or changing worlds.
+ * Each player has at most one Transition, which records the phases the player is in and what each
+ * phase still has to act on. Transitions are immutable and replaced atomically, so hooks and
+ * scheduled tasks may update them from any Thread without locking. A player without any phase has
+ * no Transition at all; those left behind by a disconnect are purged, and any that is not updated
+ * for longer than the expiry is dropped.
+ */
+final class PlayerTransitions {
+    /**
+     * The phases of a transition. A player may be in several at once, e.g. dead and exiting.
+     */
+    enum Phase {
+        CONNECTING, DEAD, EXITING, RESPAWNING
+    }
+
+    private final ConcurrentMap<String, Transition> transitions;
+    private final long expiryNanos;
+    private final AtomicLong expired;
+    private final AtomicLong purged;
+
+    /**
+     * @param expiryMillis How long a transition may go without an update before it is dropped.
+     */
+    PlayerTransitions(final long expiryMillis) {
+        transitions = new ConcurrentHashMap<String, Transition>();
+        expiryNanos = expiryMillis * 1000000L;
+        expired = new AtomicLong();
+        purged = new AtomicLong();
+    }
+
+    void connecting(final String uuid) {
+        set(uuid, Phase.CONNECTING, Boolean.TRUE);
+    }
+
+    boolean takeConnecting(final String uuid) {
+        return take(uuid, Phase.CONNECTING) != null;
+    }
+
+    void died(final String uuid, final Location deadLoc) {
+        set(uuid, Phase.DEAD, deadLoc);
+    }
+
+    Location takeDeath(final String uuid) {
+        return (Location) take(uuid, Phase.DEAD);
+    }
+
+    void exiting(final String uuid, final WorldExitHook worldExit) {
+        set(uuid, Phase.EXITING, worldExit);
+    }
+
+    boolean isExiting(final String uuid) {
+        final Transition transition = transitions.get(uuid);
+        return transition != null && transition.get(Phase.EXITING) != null;
+    }
+
+    WorldExitHook takeExit(final String uuid) {
+        return (WorldExitHook) take(uuid, Phase.EXITING);
+    }
+
+    void respawning(final String uuid, final Location finalLoc) {
+        set(uuid, Phase.RESPAWNING, finalLoc);
+    }
+
+    Location takeRespawn(final String uuid) {
+        return (Location) take(uuid, Phase.RESPAWNING);
+    }
+
+    /**
+     * Forget every phase of a player, e.g. when the player disconnects part way through.
+     *
+     * @param uuid The UUID of the player.
+     */
+    void purge(final String uuid) {
+        if (transitions.remove(uuid) != null) {
+            purged.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop every transition that has not been updated within the expiry.
+     *
+     * @return The number of transitions dropped.
+     */
+    int expire() {
+        final long now = System.nanoTime();
+        int count = 0;
+        for (final Map.Entry<String, Transition> entry : transitions.entrySet()) {
+            if (now - entry.getValue().updatedNanos > expiryNanos
+                    && transitions.remove(entry.getKey(), entry.getValue())) {
+                count++;
+            }
+        }
+        expired.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Get the number of players part way through a transition.
+     *
+     * @return The number of transitions in flight.
+     */
+    int size() {
+        return transitions.size();
+    }
+
+    long getExpired() {
+        return expired.get();
+    }
+
+    long getPurged() {
+        return purged.get();
+    }
+
+    String describe() {
+        return "Transitions: inFlight=" + size() + " expired=" + getExpired() + " purged="
+                + getPurged();
+    }
+
+    private void set(final String uuid, final Phase phase, final Object value) {
+        while (true) {
+            final Transition current = transitions.get(uuid);
+            if (current == null) {
+                if (transitions.putIfAbsent(uuid, Transition.EMPTY.with(phase, value)) == null) {
+                    return;
+                }
+            } else if (transitions.replace(uuid, current, current.with(phase, value))) {
+                return;
+            }
+        }
+    }
+
+    private Object take(final String uuid, final Phase phase) {
+        while (true) {
+            final Transition current = transitions.get(uuid);
+            if (current == null) {
+                return null;
+            }
+            final Object value = current.get(phase);
+            if (value == null) {
+                return null;
+            }
+            final Transition next = current.with(phase, null);
+            if (next.isIdle() ? transitions.remove(uuid, current)
+                    : transitions.replace(uuid, current, next)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * The phases of one player and what each still has to act on, null for a phase the player is
+     * not in.
+     */
+    private static final class Transition {
+        static final Transition EMPTY = new Transition(new Object[Phase.values().length], 0);
+
+        private final Object[] values;
+        final long updatedNanos;
+
+        private Transition(final Object[] values, final long updatedNanos) {
+            this.values = values;
+            this.updatedNanos = updatedNanos;
+        }
+
+        Object get(final Phase phase) {
+            return values[phase.ordinal()];
+        }
+
+        Transition with(final Phase phase, final Object value) {
+            final Object[] next = values.clone();
+            next[phase.ordinal()] = value;
+            return new Transition(next, System.nanoTime());
+        }
+
+        boolean isIdle() {
+            for (final Object value : values) {
+                if (value != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.goodformentertainment.canary.playerstate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.goodformentertainment.canary.playerstate.api.IWorldStateManager;
+import com.goodformentertainment.canary.playerstate.api.SaveState;
+
+import net.canarymod.api.world.World;
+
+/**
+ * The state and saves of each world, resolved once from the configuration and the managed worlds
+ * so that a world change needs a single lookup and allocates nothing. A table is immutable; a new
+ * one replaces it when the configuration is loaded or a managed world is registered or
+ * unregistered, and when a world is loaded after the table was built.
+ */
+final class WorldStateTable {
+    private final PlayerStateConfiguration config;
+    private final IWorldStateManager worldStateManager;
+    private final Map<String, Entry> worlds;
+    private final Map<String, SaveState[]> stateSaves;
+
+    private WorldStateTable(final PlayerStateConfiguration config,
+            final IWorldStateManager worldStateManager, final Map<String, Entry> worlds,
+            final Map<String, SaveState[]> stateSaves) {
+        this.config = config;
+        this.worldStateManager = worldStateManager;
+        this.worlds = worlds;
+        this.stateSaves = stateSaves;
+    }
+
+    /**
+     * Resolve the state and saves of every given world.
+     *
+     * @param config            The plugin configuration.
+     * @param worldStateManager The managed worlds.
+     * @param loadedWorlds      The worlds to resolve up front.
+     * @return The table.
+     */
+    static WorldStateTable build(final PlayerStateConfiguration config,
+            final IWorldStateManager worldStateManager, final Collection<World> loadedWorlds) {
+        final WorldStateTable table = new WorldStateTable(config, worldStateManager,
+                new HashMap<String, Entry>(), new HashMap<String, SaveState[]>());
+        for (final World world : loadedWorlds) {
+            table.resolve(world);
+        }
+        return table;
+    }
+
+    /**
+     * Get the resolved state of a world.
+     *
+     * @param world The World.
+     * @return The Entry, or null if the world was not loaded when the table was built.
+     */
+    Entry get(final World world) {
+        return worlds.get(world.getName());
+    }
+
+    /**
+     * Create a table that also resolves a world loaded after this table was built.
+     *
+     * @param world The World.
+     * @return The new table.
+     */
+    WorldStateTable with(final World world) {
+        final WorldStateTable table = new WorldStateTable(config, worldStateManager,
+                new HashMap<String, Entry>(worlds), new HashMap<String, SaveState[]>(stateSaves));
+        table.resolve(world);
+        return table;
+    }
+
+    private void resolve(final World world) {
+        String state = worldStateManager.getManagedWorldState(world);
+        if (state == null) {
+            state = config.getState(world);
+        }
+        SaveState[] saves = stateSaves.get(state);
+        if (saves == null) {
+            saves = worldStateManager.getManagedStateSaves(state);
+            if (saves == null) {
+                saves = config.getSaves(state);
+            }
+            // Shared by every world with this state
+            stateSaves.put(state, saves);
+        }
+        worlds.put(world.getName(), new Entry(state, saves));
+    }
+
+    /**
+     * The state of a world and the saves of that state. The saves array is shared and must not be
+     * modified.
+     */
+    static final class Entry {
+        final String state;
+        final SaveState[] saves;
+
+        private Entry(final String state, final SaveState[] saves) {
+            this.state = state;
+            this.saves = saves;
+        }
+    }
+}
@@ -4,9 +4,13 @@ import net.canarymod.api.entity.living.humanoid.Player;
 import net.canarymod.api.world.position.Location;
 import net.canarymod.database.exceptions.DatabaseReadException;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 public interface IPlayerStateManager {
     /**
-     * The delay in seconds between player state saves.
+     * The default interval in seconds between player state saves.
      */
     long SAVE_DELAY_SECONDS = 10;
 
@@ -51,4 +55,63 @@ public interface IPlayerStateManager {
      * @throws DatabaseReadException If there is an error reading from the database.
      */
     Location getPlayerReturnLocation(Player player, String state) throws DatabaseReadException;
+
+    /**
+     * Load the specified saves for the named state onto the given Player without blocking the
+     * server Thread on the database. The state is read and decoded on a background Thread, then
+     * applied on the server Thread, where the returned Future completes and the callback is
+     * called. A save of the state made in the meantime is always included. If the Player has
+     * disconnected before the state could be applied, nothing is applied and the result is false.
+     *
+     * @param player   The Player to load the state onto.
+     * @param state    The name of the state to load.
+     * @param saves    The SaveStates to load.
+     * @param callback The PlayerStateCallback to receive the result, or null.
+     * @return A Future of whether the load succeeded, which fails with a DatabaseReadException if
+     * there is an error loading from the database.
+     */
+    Future<Boolean> loadPlayerStateAsync(Player player, String state, SaveState[] saves,
+            PlayerStateCallback<Boolean> callback);
+
+    /**
+     * Returns the Location the Player should return to for the specified state without blocking
+     * the server Thread on the database. The state is read on a background Thread, and the
+     * returned Future completes and the callback is called on the server Thread.
+     *
+     * @param player   The Player.
+     * @param state    The name of the state.
+     * @param callback The PlayerStateCallback to receive the Location, or null.
+     * @return A Future of the Location the Player was in when the state was saved, which fails
+     * with a DatabaseReadException if there is an error reading from the database.
+     */
+    Future<Location> getPlayerReturnLocationAsync(Player player, String state,
+            PlayerStateCallback<Location> callback);
+
+    /**
+     * Schedules the specified saves for the named state of each of the given Players, as
+     * {@link #savePlayerState(Player, String, SaveState[])} does for one Player.
+     *
+     * @param players The Players to save.
+     * @param state   The name of the state to save.
+     * @param saves   The SaveStates to use for this save.
+     */
+    void savePlayerStates(Collection<? extends Player> players, String state, SaveState[] saves);
+
+    /**
+     * Load the specified saves for the named state onto each of the given Players without
+     * blocking the server Thread on the database. The rows not yet in memory are read one Player
+     * at a time and decoded in parallel on background Threads. The Players are then loaded on
+     * the server Thread, spread over as many ticks as needed to keep each tick within the tick
+     * budget. The returned Future completes and the callback is called on the server Thread once
+     * every Player has been loaded. A Player who has disconnected meanwhile is skipped.
+     *
+     * @param players  The Players to load the state onto, at least one.
+     * @param state    The name of the state to load.
+     * @param saves    The SaveStates to load.
+     * @param callback The PlayerStateCallback to receive the results, or null.
+     * @return A Future of whether the load succeeded for each Player, by UUID, which fails with a
+     * DatabaseReadException if the states could not be read.
+     */
+    Future<Map<String, Boolean>> loadPlayerStatesAsync(Collection<? extends Player> players,
+            String state, SaveState[] saves, PlayerStateCallback<Map<String, Boolean>> callback);
 }
@@ -0,0 +1,23 @@
+package com.goodformentertainment.canary.playerstate.api;
+
+/**
+ * Receives the result of an asynchronous IPlayerStateManager call. Both methods are called on the
+ * server Thread, so they may modify the Player and the World directly.
+ *
+ * @param <T> The type of the result.
+ */
+public interface PlayerStateCallback<T> {
+    /**
+     * Called when the call has finished.
+     *
+     * @param result The result, the same as the synchronous call would have returned.
+     */
+    void completed(T result);
+
+    /**
+     * Called when the call has failed, e.g. with a DatabaseReadException.
+     *
+     * @param cause The reason for the failure.
+     */
+    void failed(Throwable cause);
+}
@@ -0,0 +1,96 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+/**
+ * The standard Base64 alphabet with padding, as in RFC 4648. The item codecs need it on every Java
+ * version the plugin runs on, and neither javax.xml.bind nor java.util.Base64 is available on all
+ * of them.
+ */
+final class Base64 {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    /**
+     * Encode bytes as Base64.
+     *
+     * @param bytes The bytes.
+     * @return The Base64 text.
+     */
+    static String encode(final byte[] bytes) {
+        final char[] out = new char[(bytes.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            final int b = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+                    | bytes[i + 2] & 0xff;
+            out[o++] = ALPHABET[b >>> 18];
+            out[o++] = ALPHABET[b >>> 12 & 0x3f];
+            out[o++] = ALPHABET[b >>> 6 & 0x3f];
+            out[o++] = ALPHABET[b & 0x3f];
+        }
+        final int left = bytes.length - i;
+        if (left > 0) {
+            final int b = (bytes[i] & 0xff) << 16 | (left > 1 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[b >>> 18];
+            out[o++] = ALPHABET[b >>> 12 & 0x3f];
+            out[o++] = left > 1 ? ALPHABET[b >>> 6 & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decode Base64 text.
+     *
+     * @param s     The text holding the Base64.
+     * @param start The index of the first Base64 character in the text.
+     * @return The bytes.
+     * @throws IllegalArgumentException If the text is not valid Base64.
+     */
+    static byte[] decode(final String s, final int start) {
+        final int length = s.length() - start;
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Invalid Base64 length: " + length);
+        }
+        int padding = 0;
+        if (length > 0 && s.charAt(s.length() - 1) == '=') {
+            padding = s.charAt(s.length() - 2) == '=' ? 2 : 1;
+        }
+        final byte[] out = new byte[length / 4 * 3 - padding];
+        int o = 0;
+        for (int i = start; i < s.length(); i += 4) {
+            final int b = value(s, i) << 18 | value(s, i + 1) << 12
+                    | (s.charAt(i + 2) == '=' ? 0 : value(s, i + 2) << 6)
+                    | (s.charAt(i + 3) == '=' ? 0 : value(s, i + 3));
+            out[o++] = (byte) (b >>> 16);
+            if (o < out.length) {
+                out[o++] = (byte) (b >>> 8);
+            }
+            if (o < out.length) {
+                out[o++] = (byte) b;
+            }
+        }
+        return out;
+    }
+
+    private static int value(final String s, final int index) {
+        final char c = s.charAt(index);
+        final int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid Base64 character at " + index);
+        }
+        return value;
+    }
+}
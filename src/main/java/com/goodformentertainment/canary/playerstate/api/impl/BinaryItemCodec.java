@@ -0,0 +1,274 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import net.canarymod.Canary;
+import net.canarymod.api.factory.NBTFactory;
+import net.canarymod.api.nbt.BaseTag;
+import net.canarymod.api.nbt.ByteArrayTag;
+import net.canarymod.api.nbt.ByteTag;
+import net.canarymod.api.nbt.CompoundTag;
+import net.canarymod.api.nbt.DoubleTag;
+import net.canarymod.api.nbt.FloatTag;
+import net.canarymod.api.nbt.IntArrayTag;
+import net.canarymod.api.nbt.IntTag;
+import net.canarymod.api.nbt.ListTag;
+import net.canarymod.api.nbt.LongTag;
+import net.canarymod.api.nbt.ShortTag;
+import net.canarymod.api.nbt.StringTag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores all tags of a section as a single Base64 string holding the binary NBT layout, optionally
+ * deflated. This avoids building and parsing JSON on every world change and is several times
+ * smaller for typical inventories.
+ * <p>
+ * Strings are written as their length and UTF-8 bytes. Data written by the first version of this
+ * format, which used modified UTF-8 limited to 64 KB per string, is still read.
+ */
+class BinaryItemCodec extends ItemCodec {
+    private static final NBTFactory NBT_FACTORY = Canary.factory().getNBTFactory();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String BINARY_PREFIX = "nbt2:";
+    private static final String COMPRESSED_PREFIX = "nbz2:";
+    private static final String LEGACY_BINARY_PREFIX = "nbt1:";
+    private static final String LEGACY_COMPRESSED_PREFIX = "nbz1:";
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_BYTE = 1;
+    private static final byte TAG_SHORT = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_BYTE_ARRAY = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+    private static final byte TAG_INT_ARRAY = 11;
+
+    private final boolean compressed;
+    private final String prefix;
+    private final String legacyPrefix;
+
+    BinaryItemCodec(final boolean compressed) {
+        this.compressed = compressed;
+        prefix = compressed ? COMPRESSED_PREFIX : BINARY_PREFIX;
+        legacyPrefix = compressed ? LEGACY_COMPRESSED_PREFIX : LEGACY_BINARY_PREFIX;
+    }
+
+    @Override
+    List<String> encode(final List<CompoundTag> tags) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            final OutputStream stream = compressed ? new DeflaterOutputStream(bytes) : bytes;
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeShort(tags.size());
+            for (final CompoundTag tag : tags) {
+                out.writeBoolean(tag != null);
+                if (tag != null) {
+                    writeCompound(out, tag);
+                }
+            }
+            out.close();
+        } catch (final IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException("Unable to encode items", e);
+        }
+
+        final List<String> data = new ArrayList<String>(1);
+        data.add(prefix + Base64.encode(bytes.toByteArray()));
+        return data;
+    }
+
+    @Override
+    List<CompoundTag> decode(final List<String> data) {
+        final String s = data.get(0);
+        final boolean legacy = s.startsWith(legacyPrefix);
+        try {
+            final byte[] bytes = Base64.decode(s, prefix.length());
+            final InputStream stream = new ByteArrayInputStream(bytes);
+            final DataInputStream in = new DataInputStream(compressed ? new InflaterInputStream(
+                    stream) : stream);
+            final int size = in.readShort();
+            final List<CompoundTag> tags = new ArrayList<CompoundTag>(size);
+            for (int i = 0; i < size; i++) {
+                if (in.readBoolean()) {
+                    tags.add(readCompound(in, legacy));
+                } else {
+                    tags.add(null);
+                }
+            }
+            in.close();
+            return tags;
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Corrupt item data: " + s, e);
+        }
+    }
+
+    @Override
+    boolean canDecode(final String data) {
+        return data != null && (data.startsWith(prefix) || data.startsWith(legacyPrefix));
+    }
+
+    private static void writeString(final DataOutputStream out, final String s)
+            throws IOException {
+        final byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in, final boolean legacy)
+            throws IOException {
+        if (legacy) {
+            return in.readUTF();
+        }
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void writeCompound(final DataOutputStream out, final CompoundTag tag)
+            throws IOException {
+        for (final String key : tag.keySet()) {
+            final BaseTag value = tag.get(key);
+            out.writeByte(value.getTypeId());
+            writeString(out, key);
+            writePayload(out, value);
+        }
+        out.writeByte(TAG_END);
+    }
+
+    private void writePayload(final DataOutputStream out, final BaseTag tag) throws IOException {
+        switch (tag.getTypeId()) {
+            case TAG_BYTE:
+                out.writeByte(((ByteTag) tag).getValue());
+                break;
+            case TAG_SHORT:
+                out.writeShort(((ShortTag) tag).getValue());
+                break;
+            case TAG_INT:
+                out.writeInt(((IntTag) tag).getValue());
+                break;
+            case TAG_LONG:
+                out.writeLong(((LongTag) tag).getValue());
+                break;
+            case TAG_FLOAT:
+                out.writeFloat(((FloatTag) tag).getValue());
+                break;
+            case TAG_DOUBLE:
+                out.writeDouble(((DoubleTag) tag).getValue());
+                break;
+            case TAG_BYTE_ARRAY:
+                final byte[] byteArray = ((ByteArrayTag) tag).getValue();
+                out.writeInt(byteArray.length);
+                out.write(byteArray);
+                break;
+            case TAG_STRING:
+                writeString(out, ((StringTag) tag).getValue());
+                break;
+            case TAG_LIST:
+                final ListTag<?> list = (ListTag<?>) tag;
+                out.writeByte(list.isEmpty() ? TAG_END : list.get(0).getTypeId());
+                out.writeInt(list.size());
+                for (final BaseTag element : list) {
+                    writePayload(out, element);
+                }
+                break;
+            case TAG_COMPOUND:
+                writeCompound(out, (CompoundTag) tag);
+                break;
+            case TAG_INT_ARRAY:
+                final int[] intArray = ((IntArrayTag) tag).getValue();
+                out.writeInt(intArray.length);
+                for (final int i : intArray) {
+                    out.writeInt(i);
+                }
+                break;
+            default:
+                throw new IOException("Unsupported tag type: " + tag.getTypeId());
+        }
+    }
+
+    private CompoundTag readCompound(final DataInputStream in, final boolean legacy)
+            throws IOException {
+        final CompoundTag tag = NBT_FACTORY.newCompoundTag(null);
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            final String key = readString(in, legacy);
+            tag.put(key, readPayload(in, type, legacy));
+        }
+        return tag;
+    }
+
+    private BaseTag readPayload(final DataInputStream in, final byte type, final boolean legacy)
+            throws IOException {
+        final BaseTag tag;
+        switch (type) {
+            case TAG_BYTE:
+                tag = NBT_FACTORY.newByteTag(in.readByte());
+                break;
+            case TAG_SHORT:
+                tag = NBT_FACTORY.newShortTag(in.readShort());
+                break;
+            case TAG_INT:
+                tag = NBT_FACTORY.newIntTag(in.readInt());
+                break;
+            case TAG_LONG:
+                tag = NBT_FACTORY.newLongTag(in.readLong());
+                break;
+            case TAG_FLOAT:
+                tag = NBT_FACTORY.newFloatTag(in.readFloat());
+                break;
+            case TAG_DOUBLE:
+                tag = NBT_FACTORY.newDoubleTag(in.readDouble());
+                break;
+            case TAG_BYTE_ARRAY:
+                final byte[] byteArray = new byte[in.readInt()];
+                in.readFully(byteArray);
+                tag = NBT_FACTORY.newByteArrayTag(byteArray);
+                break;
+            case TAG_STRING:
+                tag = NBT_FACTORY.newStringTag(readString(in, legacy));
+                break;
+            case TAG_LIST:
+                final byte elementType = in.readByte();
+                final int size = in.readInt();
+                final ListTag<BaseTag> list = NBT_FACTORY.newListTag();
+                for (int i = 0; i < size; i++) {
+                    list.add(readPayload(in, elementType, legacy));
+                }
+                tag = list;
+                break;
+            case TAG_COMPOUND:
+                tag = readCompound(in, legacy);
+                break;
+            case TAG_INT_ARRAY:
+                final int[] intArray = new int[in.readInt()];
+                for (int i = 0; i < intArray.length; i++) {
+                    intArray[i] = in.readInt();
+                }
+                tag = NBT_FACTORY.newIntArrayTag(intArray);
+                break;
+            default:
+                throw new IOException("Unsupported tag type: " + type);
+        }
+        return tag;
+    }
+}
@@ -0,0 +1,169 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the write-behind queue is flushed. A flush runs as soon as any of these is true:
+ * <ul>
+ * <li>the queue holds at least the threshold number of states,</li>
+ * <li>the interval has passed since the last flush and since the oldest state was queued,</li>
+ * <li>the oldest waiting state has reached the maximum age.</li>
+ * </ul>
+ * Nothing is scheduled while the queue is empty. When a flush takes longer than the slow flush
+ * limit the scheduler backs off, doubling the pause after each slow flush up to the maximum
+ * back-off. The size and interval triggers wait for the back-off to end; the maximum age does not.
+ */
+class FlushScheduler implements Runnable {
+    private static final long MIN_DELAY_MILLIS = 50;
+
+    private final Runnable flush;
+    private final WriteBehindQueue queue;
+    private final PlayerStateMetrics metrics;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> next;
+    private long nextRunNanos;
+
+    private volatile long intervalNanos = TimeUnit.SECONDS.toNanos(10);
+    private volatile long maxAgeNanos = TimeUnit.SECONDS.toNanos(60);
+    private volatile int threshold = 200;
+    private volatile long slowFlushNanos = TimeUnit.SECONDS.toNanos(2);
+    private volatile long maxBackoffNanos = TimeUnit.SECONDS.toNanos(120);
+
+    private long lastFlushNanos;
+    private long backoffNanos;
+
+    FlushScheduler(final Runnable flush, final WriteBehindQueue queue,
+                   final PlayerStateMetrics metrics) {
+        this.flush = flush;
+        this.queue = queue;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the thresholds that trigger a flush and control back-off.
+     *
+     * @param intervalMillis   The time a state waits to be flushed with others queued after it.
+     * @param maxAgeMillis     The longest time a state waits, even while backing off.
+     * @param threshold        The number of waiting states that triggers a flush.
+     * @param slowFlushMillis  The flush duration above which the scheduler backs off.
+     * @param maxBackoffMillis The longest pause after slow flushes.
+     */
+    void configure(final long intervalMillis, final long maxAgeMillis, final int threshold,
+                   final long slowFlushMillis, final long maxBackoffMillis) {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_DELAY_MILLIS, intervalMillis));
+        maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_DELAY_MILLIS, maxAgeMillis));
+        this.threshold = Math.max(1, threshold);
+        slowFlushNanos = TimeUnit.MILLISECONDS.toNanos(slowFlushMillis);
+        maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+        metrics.recordSchedule(intervalMillis, maxAgeMillis, threshold);
+    }
+
+    synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Scheduler"));
+        lastFlushNanos = System.nanoTime();
+        backoffNanos = 0;
+        if (!queue.isEmpty()) {
+            reschedule(System.nanoTime());
+        }
+    }
+
+    synchronized void stop() {
+        if (executor != null) {
+            // Let a flush in progress finish, the caller flushes whatever remains
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Called after a state was queued so that a flush is scheduled when the queue was idle, and is
+     * brought forward when the queue has reached the threshold.
+     */
+    void notifyEnqueued() {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (executor != null && (next == null || queue.size() >= threshold)) {
+                reschedule(now);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        final long now = System.nanoTime();
+        final String reason;
+        synchronized (this) {
+            next = null;
+            reason = dueReason(now);
+        }
+
+        if (reason != null) {
+            final long start = System.nanoTime();
+            flush.run();
+            final long end = System.nanoTime();
+            synchronized (this) {
+                lastFlushNanos = end;
+                if (end - start > slowFlushNanos) {
+                    backoffNanos = Math.min(maxBackoffNanos, Math.max(backoffNanos * 2,
+                            intervalNanos));
+                } else {
+                    backoffNanos = 0;
+                }
+                metrics.recordFlushTrigger(reason, TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+            }
+        }
+
+        synchronized (this) {
+            if (executor != null && next == null && !queue.isEmpty()) {
+                reschedule(System.nanoTime());
+            }
+        }
+    }
+
+    private String dueReason(final long now) {
+        String reason = null;
+        if (!queue.isEmpty()) {
+            final long oldest = queue.getOldestNanos();
+            if (oldest != 0 && now - oldest >= maxAgeNanos) {
+                reason = "age";
+            } else if (now - lastFlushNanos >= backoffNanos) {
+                if (queue.size() >= threshold) {
+                    reason = "size";
+                } else if (now - Math.max(lastFlushNanos, oldest) >= intervalNanos) {
+                    reason = "interval";
+                }
+            }
+        }
+        return reason;
+    }
+
+    private void reschedule(final long now) {
+        final long oldest = queue.getOldestNanos();
+        final long ageDue = (oldest != 0 ? oldest : now) + maxAgeNanos;
+        final long earliest = lastFlushNanos + backoffNanos;
+        final long regularDue;
+        if (queue.size() >= threshold) {
+            regularDue = earliest;
+        } else {
+            regularDue = Math.max(earliest, Math.max(lastFlushNanos, oldest) + intervalNanos);
+        }
+        final long due = Math.min(ageDue, regularDue);
+
+        if (next == null || due < nextRunNanos) {
+            if (next != null) {
+                next.cancel(false);
+            }
+            final long delayMillis = Math.max(MIN_DELAY_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(due - now));
+            nextRunNanos = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            next = executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import net.canarymod.api.nbt.CompoundTag;
+
+import java.util.List;
+
+/**
+ * Converts the NBT tags of items to and from the strings stored in the inventory, ender inventory
+ * and equipment columns. Every codec reads only its own data; use {@link #forData(List)} to find
+ * the codec that wrote a column.
+ */
+abstract class ItemCodec {
+    static final String JSON = "json";
+    static final String BINARY = "binary";
+    static final String COMPRESSED = "compressed";
+
+    private static final ItemCodec JSON_CODEC = new JsonItemCodec();
+    private static final ItemCodec BINARY_CODEC = new BinaryItemCodec(false);
+    private static final ItemCodec COMPRESSED_CODEC = new BinaryItemCodec(true);
+
+    /**
+     * Get the codec for a configured format name. Unknown names fall back to the JSON format.
+     *
+     * @param format The name of the format.
+     * @return The ItemCodec.
+     */
+    static ItemCodec forFormat(final String format) {
+        final ItemCodec codec;
+        if (BINARY.equalsIgnoreCase(format)) {
+            codec = BINARY_CODEC;
+        } else if (COMPRESSED.equalsIgnoreCase(format)) {
+            codec = COMPRESSED_CODEC;
+        } else {
+            codec = JSON_CODEC;
+        }
+        return codec;
+    }
+
+    /**
+     * Get the codec able to decode stored data. Data written before the binary formats existed is
+     * always JSON.
+     *
+     * @param data The stored data.
+     * @return The ItemCodec.
+     */
+    static ItemCodec forData(final List<String> data) {
+        ItemCodec codec = JSON_CODEC;
+        if (data != null && data.size() == 1) {
+            if (BINARY_CODEC.canDecode(data.get(0))) {
+                codec = BINARY_CODEC;
+            } else if (COMPRESSED_CODEC.canDecode(data.get(0))) {
+                codec = COMPRESSED_CODEC;
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Encode a list of tags, any of which may be null.
+     *
+     * @param tags The tags to encode.
+     * @return The data to store.
+     */
+    abstract List<String> encode(List<CompoundTag> tags);
+
+    /**
+     * Decode stored data back to the tags it was encoded from, including any null tags.
+     *
+     * @param data The stored data.
+     * @return The decoded tags.
+     */
+    abstract List<CompoundTag> decode(List<String> data);
+
+    /**
+     * Check whether this codec wrote a stored string.
+     *
+     * @param data A stored string.
+     * @return True if this codec can decode the string.
+     */
+    abstract boolean canDecode(String data);
+}
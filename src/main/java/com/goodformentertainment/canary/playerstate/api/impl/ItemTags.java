@@ -0,0 +1,115 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import net.canarymod.api.nbt.BaseTag;
+import net.canarymod.api.nbt.ByteArrayTag;
+import net.canarymod.api.nbt.ByteTag;
+import net.canarymod.api.nbt.CompoundTag;
+import net.canarymod.api.nbt.DoubleTag;
+import net.canarymod.api.nbt.FloatTag;
+import net.canarymod.api.nbt.IntArrayTag;
+import net.canarymod.api.nbt.IntTag;
+import net.canarymod.api.nbt.ListTag;
+import net.canarymod.api.nbt.LongTag;
+import net.canarymod.api.nbt.ShortTag;
+import net.canarymod.api.nbt.StringTag;
+
+import java.util.Arrays;
+
+/**
+ * Compares the NBT tags of items by value, so a restore can tell which slots already hold the
+ * stored item. Only the tag types that items use are compared; any other type never matches.
+ */
+final class ItemTags {
+    static final String SLOT = "slot";
+
+    private static final byte TAG_BYTE = 1;
+    private static final byte TAG_SHORT = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_BYTE_ARRAY = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+    private static final byte TAG_INT_ARRAY = 11;
+
+    private ItemTags() {
+    }
+
+    /**
+     * Check whether a stored item tag describes the same item as a tag written by a live item. The
+     * slot recorded with stored inventory items is ignored.
+     *
+     * @param stored The stored tag, or null for an empty slot.
+     * @param live   The tag written by the live item, or null for an empty slot.
+     * @return True if both describe the same item.
+     */
+    static boolean sameItem(final CompoundTag stored, final CompoundTag live) {
+        if (stored == null || live == null) {
+            return stored == live;
+        }
+        int keys = 0;
+        for (final String key : stored.keySet()) {
+            if (!key.equals(SLOT)) {
+                if (!same(stored.get(key), live.get(key))) {
+                    return false;
+                }
+                keys++;
+            }
+        }
+        return keys == live.keySet().size() - (live.containsKey(SLOT) ? 1 : 0);
+    }
+
+    private static boolean same(final BaseTag a, final BaseTag b) {
+        if (a == null || b == null || a.getTypeId() != b.getTypeId()) {
+            return false;
+        }
+        switch (a.getTypeId()) {
+            case TAG_BYTE:
+                return ((ByteTag) a).getValue() == ((ByteTag) b).getValue();
+            case TAG_SHORT:
+                return ((ShortTag) a).getValue() == ((ShortTag) b).getValue();
+            case TAG_INT:
+                return ((IntTag) a).getValue() == ((IntTag) b).getValue();
+            case TAG_LONG:
+                return ((LongTag) a).getValue() == ((LongTag) b).getValue();
+            case TAG_FLOAT:
+                return Float.compare(((FloatTag) a).getValue(), ((FloatTag) b).getValue()) == 0;
+            case TAG_DOUBLE:
+                return Double.compare(((DoubleTag) a).getValue(), ((DoubleTag) b).getValue()) == 0;
+            case TAG_BYTE_ARRAY:
+                return Arrays.equals(((ByteArrayTag) a).getValue(), ((ByteArrayTag) b).getValue());
+            case TAG_STRING:
+                return ((StringTag) a).getValue().equals(((StringTag) b).getValue());
+            case TAG_LIST:
+                final ListTag<?> listA = (ListTag<?>) a;
+                final ListTag<?> listB = (ListTag<?>) b;
+                if (listA.size() != listB.size()) {
+                    return false;
+                }
+                for (int i = 0; i < listA.size(); i++) {
+                    if (!same(listA.get(i), listB.get(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            case TAG_COMPOUND:
+                final CompoundTag compoundA = (CompoundTag) a;
+                final CompoundTag compoundB = (CompoundTag) b;
+                if (compoundA.keySet().size() != compoundB.keySet().size()) {
+                    return false;
+                }
+                for (final String key : compoundA.keySet()) {
+                    if (!same(compoundA.get(key), compoundB.get(key))) {
+                        return false;
+                    }
+                }
+                return true;
+            case TAG_INT_ARRAY:
+                return Arrays.equals(((IntArrayTag) a).getValue(), ((IntArrayTag) b).getValue());
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import net.canarymod.Canary;
+import net.canarymod.api.nbt.CompoundTag;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores each tag as its own JSON string, the original PlayerState format.
+ */
+class JsonItemCodec extends ItemCodec {
+    @Override
+    List<String> encode(final List<CompoundTag> tags) {
+        final List<String> data = new ArrayList<String>(tags.size());
+        for (final CompoundTag tag : tags) {
+            if (tag != null) {
+                data.add(Canary.jsonNBT().baseTagToJSON(tag));
+            } else {
+                data.add(null);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    List<CompoundTag> decode(final List<String> data) {
+        final List<CompoundTag> tags = new ArrayList<CompoundTag>(data.size());
+        for (final String s : data) {
+            if (s != null && !s.equals("null")) {
+                tags.add((CompoundTag) Canary.jsonNBT().jsonToNBT(s));
+            } else {
+                tags.add(null);
+            }
+        }
+        return tags;
+    }
+
+    @Override
+    boolean canDecode(final String data) {
+        return data == null || data.equals("null") || data.startsWith("{");
+    }
+}
@@ -0,0 +1,26 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon Threads named after the work they do, so they are easy to identify in thread
+ * dumps and never hold up server shutdown.
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count;
+
+    NamedThreadFactory(final String name) {
+        this.name = name;
+        count = new AtomicInteger();
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "PlayerState-" + name + "-"
+                + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,150 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.api.SaveState;
+import net.canarymod.api.nbt.CompoundTag;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The raw values of a player state, ready to be encoded or applied without further parsing. A save
+ * captures one on the server Thread, which only copies values out of the Player, and leaves the
+ * encoding to an encode Thread. A loaded state is decoded into one off the server Thread and kept
+ * in the cache, so applying it is just a sequence of setter calls. Only the fields of the sections
+ * listed in {@link #saves} are set, and nothing here refers to live game objects, so a snapshot may
+ * be read from any Thread once it is published. Snapshots are never modified after that; the item
+ * tags must be copied before they are handed to an Item. A decoded state may cover only the
+ * sections that have been loaded so far, the others are decoded and merged in when first needed.
+ */
+class PlayerSnapshot {
+    final String uuid;
+    final String state;
+    final SaveState[] saves;
+
+    int[] achievements;
+
+    /**
+     * Each effect as its potion id, duration, amplifier and 1 if it is ambient, 0 otherwise.
+     */
+    int[][] effects;
+    float exhaustion;
+    int experience;
+    float health;
+    int hunger;
+    double maxHealth;
+
+    int gameMode;
+
+    List<CompoundTag> enderItems;
+    List<CompoundTag> items;
+    List<CompoundTag> equipment;
+
+    String homeLocation;
+    String spawnLocation;
+    String location;
+
+    String prefix;
+
+    int[] statistics;
+
+    PlayerSnapshot(final String uuid, final String state, final SaveState[] saves) {
+        this.uuid = uuid;
+        this.state = state;
+        this.saves = saves.clone();
+    }
+
+    /**
+     * Create a snapshot of the sections of both snapshots, taking those of the other snapshot from
+     * it and the rest from this snapshot.
+     *
+     * @param newer A snapshot of the same state, e.g. captured by a save.
+     * @return The merged snapshot.
+     */
+    PlayerSnapshot merge(final PlayerSnapshot newer) {
+        final List<SaveState> sections = new ArrayList<SaveState>();
+        for (final SaveState save : SaveState.values()) {
+            if (contains(saves, save) || contains(newer.saves, save)) {
+                sections.add(save);
+            }
+        }
+        final PlayerSnapshot merged = new PlayerSnapshot(uuid, state,
+                sections.toArray(new SaveState[sections.size()]));
+        merged.copy(this, saves);
+        merged.copy(newer, newer.saves);
+        return merged;
+    }
+
+    /**
+     * Get the requested sections this snapshot does not cover.
+     *
+     * @param requested The sections to apply.
+     * @return The missing sections, empty if this snapshot covers them all.
+     */
+    SaveState[] missing(final SaveState[] requested) {
+        final List<SaveState> missing = new ArrayList<SaveState>();
+        for (final SaveState save : requested) {
+            if (!contains(saves, save) && !missing.contains(save)) {
+                missing.add(save);
+            }
+        }
+        return missing.toArray(new SaveState[missing.size()]);
+    }
+
+    private static boolean contains(final SaveState[] sections, final SaveState save) {
+        for (final SaveState section : sections) {
+            if (section == save) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void copy(final PlayerSnapshot from, final SaveState[] sections) {
+        for (final SaveState save : sections) {
+            switch (save) {
+                case ACHIEVEMENTS:
+                    achievements = from.achievements;
+                    break;
+                case CONDITIONS:
+                    effects = from.effects;
+                    exhaustion = from.exhaustion;
+                    experience = from.experience;
+                    health = from.health;
+                    hunger = from.hunger;
+                    maxHealth = from.maxHealth;
+                    break;
+                case GAMEMODE:
+                    gameMode = from.gameMode;
+                    break;
+                case INVENTORY:
+                    enderItems = from.enderItems;
+                    items = from.items;
+                    equipment = from.equipment;
+                    break;
+                case LOCATIONS:
+                    homeLocation = from.homeLocation;
+                    spawnLocation = from.spawnLocation;
+                    location = from.location;
+                    break;
+                case PREFIX:
+                    prefix = from.prefix;
+                    break;
+                case STATISTICS:
+                    statistics = from.statistics;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("The specified save is not supported: "
+                            + save);
+            }
+        }
+    }
+
+    /**
+     * Get the key shared by every save of the same state of the same player.
+     *
+     * @return The key.
+     */
+    String key() {
+        return uuid + '\n' + state;
+    }
+}
@@ -0,0 +1,424 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerDao;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of PlayerDaos, grouped by player. States known to be missing from the database
+ * are cached as well, so repeated lookups of a state that was never saved do not reach the
+ * database. The cache is bounded by the approximate size of the serialized state it holds and
+ * evicts the least recently used players first. A player with a write that has not reached the
+ * database yet is never evicted, so the cache never serves state older than the database. Next to
+ * each PlayerDao the cache can hold its decoded form, so a state loaded again is not parsed again.
+ */
+class PlayerStateCache {
+    private static final long MISSING_WEIGHT = 64;
+
+    private final LinkedHashMap<String, CachedPlayer> players;
+    private final Set<String> unloading;
+    private final WriteBehindQueue persistQueue;
+    private final PlayerStateMetrics metrics;
+    private long maxWeight;
+    private long weight;
+
+    PlayerStateCache(final WriteBehindQueue persistQueue, final PlayerStateMetrics metrics,
+                     final long maxWeight) {
+        this.persistQueue = persistQueue;
+        this.metrics = metrics;
+        this.maxWeight = maxWeight;
+        players = new LinkedHashMap<String, CachedPlayer>(16, 0.75f, true);
+        unloading = new HashSet<String>();
+    }
+
+    /**
+     * Set the maximum approximate number of bytes of serialized state to keep in memory.
+     *
+     * @param maxWeight The maximum weight in bytes.
+     */
+    synchronized void setMaxWeight(final long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    /**
+     * Get a cached PlayerDao, recording a hit or a miss. A state known to be missing counts as a
+     * hit; use {@link #isMissing(String, String)} to tell it apart from a state that is not cached.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     * @return The cached PlayerDao or null if it is not cached or known to be missing.
+     */
+    synchronized PlayerDao get(final String uuid, final String state) {
+        PlayerDao playerDao = null;
+        boolean missing = false;
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        if (cachedPlayer != null) {
+            unloading.remove(uuid);
+            playerDao = cachedPlayer.states.get(state);
+            missing = cachedPlayer.isMissing(state);
+        }
+        if (playerDao != null) {
+            metrics.recordCacheHit();
+        } else if (missing) {
+            metrics.recordCacheNegativeHit();
+        } else {
+            metrics.recordCacheMiss();
+        }
+        return playerDao;
+    }
+
+    /**
+     * Check whether a state is cached as missing from the database.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     * @return True if the state is known not to exist.
+     */
+    synchronized boolean isMissing(final String uuid, final String state) {
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        return cachedPlayer != null && cachedPlayer.isMissing(state);
+    }
+
+    /**
+     * Check whether every state of the player has been loaded from the database.
+     *
+     * @param uuid The UUID of the player.
+     * @return True if any state of the player that is not cached does not exist.
+     */
+    synchronized boolean isComplete(final String uuid) {
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        return cachedPlayer != null && cachedPlayer.complete;
+    }
+
+    /**
+     * Get a cached PlayerDao without recording a hit or a miss.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     * @return The cached PlayerDao or null if it is not cached or known to be missing.
+     */
+    synchronized PlayerDao peek(final String uuid, final String state) {
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        return cachedPlayer == null ? null : cachedPlayer.states.get(state);
+    }
+
+    /**
+     * Get the decoded form of a cached PlayerDao.
+     *
+     * @param playerDao The cached PlayerDao.
+     * @return The decoded state, or null if the PlayerDao is no longer cached or was not decoded.
+     */
+    synchronized PlayerSnapshot getDecoded(final PlayerDao playerDao) {
+        final CachedPlayer cachedPlayer = players.get(playerDao.uuid);
+        PlayerSnapshot decoded = null;
+        if (cachedPlayer != null && cachedPlayer.states.get(playerDao.state) == playerDao) {
+            decoded = cachedPlayer.decoded.get(playerDao.state);
+        }
+        return decoded;
+    }
+
+    /**
+     * Keep the decoded form of a PlayerDao, as long as that PlayerDao is still the cached version.
+     *
+     * @param playerDao The cached PlayerDao.
+     * @param decoded   Its decoded state.
+     */
+    synchronized void putDecoded(final PlayerDao playerDao, final PlayerSnapshot decoded) {
+        final CachedPlayer cachedPlayer = players.get(playerDao.uuid);
+        if (cachedPlayer != null && cachedPlayer.states.get(playerDao.state) == playerDao) {
+            cachedPlayer.decoded.put(playerDao.state, decoded);
+            reweigh(cachedPlayer, playerDao.state, weigh(playerDao, decoded));
+            evict();
+        }
+    }
+
+    /**
+     * Weigh a cached PlayerDao again after more of its sections were read, as long as that
+     * PlayerDao is still the cached version.
+     *
+     * @param playerDao The cached PlayerDao.
+     */
+    synchronized void reweigh(final PlayerDao playerDao) {
+        final CachedPlayer cachedPlayer = players.get(playerDao.uuid);
+        if (cachedPlayer != null && cachedPlayer.states.get(playerDao.state) == playerDao) {
+            reweigh(cachedPlayer, playerDao.state,
+                    weigh(playerDao, cachedPlayer.decoded.get(playerDao.state)));
+            evict();
+        }
+    }
+
+    /**
+     * Check whether any state of the player is cached.
+     *
+     * @param uuid The UUID of the player.
+     * @return True if the player has cached state.
+     */
+    synchronized boolean containsPlayer(final String uuid) {
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        return cachedPlayer != null && !cachedPlayer.states.isEmpty();
+    }
+
+    /**
+     * Add or refresh a PlayerDao in the cache. Must be called again whenever the PlayerDao changes
+     * so that its weight stays accurate. A player being unloaded stays unloading, since a save may
+     * complete after the player has left.
+     *
+     * @param playerDao The PlayerDao to cache.
+     */
+    synchronized void put(final PlayerDao playerDao) {
+        put(playerDao, null);
+    }
+
+    /**
+     * Add or refresh a PlayerDao in the cache together with its decoded form.
+     *
+     * @param playerDao The PlayerDao to cache.
+     * @param decoded   The decoded state of the PlayerDao, or null if it has not been decoded.
+     */
+    synchronized void put(final PlayerDao playerDao, final PlayerSnapshot decoded) {
+        final CachedPlayer cachedPlayer = getOrCreate(playerDao.uuid);
+        cachedPlayer.missing.remove(playerDao.state);
+        cachedPlayer.states.put(playerDao.state, playerDao);
+        setDecoded(cachedPlayer, playerDao.state, decoded);
+        reweigh(cachedPlayer, playerDao.state, weigh(playerDao, decoded));
+        evict();
+    }
+
+    /**
+     * Install every state of a player as read from the database. States already cached are newer
+     * than the database and are kept. Afterwards any state of the player that is not cached is
+     * known to be missing.
+     *
+     * @param uuid       The UUID of the player.
+     * @param playerDaos All of the PlayerDaos stored for the player.
+     * @param decoded    The decoded states of the PlayerDaos, by state name.
+     */
+    synchronized void putAll(final String uuid, final Collection<PlayerDao> playerDaos,
+                             final Map<String, PlayerSnapshot> decoded) {
+        final CachedPlayer cachedPlayer = getOrCreate(uuid);
+        // Prefetching means the player is back
+        unloading.remove(uuid);
+        for (final PlayerDao playerDao : playerDaos) {
+            if (!cachedPlayer.states.containsKey(playerDao.state)) {
+                final PlayerSnapshot decodedState = decoded.get(playerDao.state);
+                cachedPlayer.missing.remove(playerDao.state);
+                cachedPlayer.states.put(playerDao.state, playerDao);
+                setDecoded(cachedPlayer, playerDao.state, decodedState);
+                reweigh(cachedPlayer, playerDao.state, weigh(playerDao, decodedState));
+            }
+        }
+        cachedPlayer.complete = true;
+        evict();
+    }
+
+    /**
+     * Install one state of several players as read from the database. States already cached are
+     * newer than the database and are kept. Afterwards the state is known to be missing for any
+     * of the players that it is not cached for.
+     *
+     * @param state      The name of the state.
+     * @param uuids      The UUIDs of the players that were read.
+     * @param playerDaos The PlayerDaos read, which may include other players, who are ignored.
+     */
+    synchronized void putLoaded(final String state, final Collection<String> uuids,
+                                final Collection<PlayerDao> playerDaos) {
+        final Set<String> read = new HashSet<String>(uuids);
+        for (final PlayerDao playerDao : playerDaos) {
+            if (read.contains(playerDao.uuid)) {
+                final CachedPlayer cachedPlayer = getOrCreate(playerDao.uuid);
+                if (!cachedPlayer.states.containsKey(state)) {
+                    cachedPlayer.missing.remove(state);
+                    cachedPlayer.states.put(state, playerDao);
+                    reweigh(cachedPlayer, state, weigh(playerDao));
+                }
+            }
+        }
+        for (final String uuid : read) {
+            final CachedPlayer cachedPlayer = getOrCreate(uuid);
+            if (!cachedPlayer.states.containsKey(state)) {
+                cachedPlayer.missing.add(state);
+                reweigh(cachedPlayer, state, MISSING_WEIGHT);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Record that a state does not exist in the database.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     */
+    synchronized void putMissing(final String uuid, final String state) {
+        final CachedPlayer cachedPlayer = getOrCreate(uuid);
+        if (!cachedPlayer.states.containsKey(state)) {
+            cachedPlayer.missing.add(state);
+            reweigh(cachedPlayer, state, MISSING_WEIGHT);
+            evict();
+        }
+    }
+
+    /**
+     * Drop a cached state so the next lookup reads it from the database again. A state with a
+     * write that has not completed is newer than the database and is kept.
+     *
+     * @param uuid  The UUID of the player.
+     * @param state The name of the state.
+     */
+    synchronized void invalidate(final String uuid, final String state) {
+        final CachedPlayer cachedPlayer = players.get(uuid);
+        if (cachedPlayer != null && !persistQueue.hasPending(uuid)) {
+            cachedPlayer.states.remove(state);
+            cachedPlayer.decoded.remove(state);
+            cachedPlayer.missing.remove(state);
+            cachedPlayer.complete = false;
+            reweigh(cachedPlayer, state, 0);
+            metrics.recordCacheInvalidation();
+        }
+    }
+
+    /**
+     * Unload every cached state of a player once any pending write for the player has reached the
+     * database.
+     *
+     * @param uuid The UUID of the player.
+     */
+    synchronized void unload(final String uuid) {
+        if (players.containsKey(uuid)) {
+            unloading.add(uuid);
+            purgeUnloaded();
+        }
+    }
+
+    /**
+     * Unload the players waiting on a write that has since completed.
+     */
+    synchronized void purgeUnloaded() {
+        final Iterator<String> it = unloading.iterator();
+        while (it.hasNext()) {
+            final String uuid = it.next();
+            if (!persistQueue.hasPending(uuid)) {
+                it.remove();
+                remove(uuid);
+                metrics.recordCacheUnload();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return players.size();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    private CachedPlayer getOrCreate(final String uuid) {
+        CachedPlayer cachedPlayer = players.get(uuid);
+        if (cachedPlayer == null) {
+            cachedPlayer = new CachedPlayer();
+            players.put(uuid, cachedPlayer);
+        }
+        return cachedPlayer;
+    }
+
+    private static void setDecoded(final CachedPlayer cachedPlayer, final String state,
+                                   final PlayerSnapshot decoded) {
+        if (decoded != null) {
+            cachedPlayer.decoded.put(state, decoded);
+        } else {
+            cachedPlayer.decoded.remove(state);
+        }
+    }
+
+    private void reweigh(final CachedPlayer cachedPlayer, final String state,
+                         final long entryWeight) {
+        final Long oldWeight;
+        if (entryWeight > 0) {
+            oldWeight = cachedPlayer.weights.put(state, entryWeight);
+        } else {
+            oldWeight = cachedPlayer.weights.remove(state);
+        }
+        final long delta = entryWeight - (oldWeight == null ? 0 : oldWeight);
+        cachedPlayer.weight += delta;
+        weight += delta;
+    }
+
+    private void evict() {
+        if (weight > maxWeight) {
+            final Iterator<Map.Entry<String, CachedPlayer>> it = players.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                final Map.Entry<String, CachedPlayer> entry = it.next();
+                if (!persistQueue.hasPending(entry.getKey())) {
+                    it.remove();
+                    weight -= entry.getValue().weight;
+                    unloading.remove(entry.getKey());
+                    metrics.recordCacheEviction();
+                }
+            }
+        }
+        metrics.recordCacheSize(players.size(), weight);
+    }
+
+    private void remove(final String uuid) {
+        final CachedPlayer cachedPlayer = players.remove(uuid);
+        if (cachedPlayer != null) {
+            weight -= cachedPlayer.weight;
+        }
+        metrics.recordCacheSize(players.size(), weight);
+    }
+
+    private static long weigh(final PlayerDao playerDao, final PlayerSnapshot decoded) {
+        // The decoded tags and values take about as much memory as the strings they came from
+        final long bytes = weigh(playerDao);
+        return decoded != null ? 2 * bytes : bytes;
+    }
+
+    private static long weigh(final PlayerDao playerDao) {
+        // Strings dominate the payload, count two bytes per char plus a fixed overhead per object
+        long bytes = 128;
+        bytes += weigh(playerDao.uuid) + weigh(playerDao.state);
+        bytes += weigh(playerDao.effects);
+        bytes += weigh(playerDao.homeLocation) + weigh(playerDao.location);
+        bytes += weigh(playerDao.spawnLocation) + weigh(playerDao.prefix);
+        bytes += weigh(playerDao.enderInventory) + weigh(playerDao.inventory);
+        bytes += weigh(playerDao.equipment);
+        bytes += weigh(playerDao.achievements) + weigh(playerDao.statistics);
+        return bytes;
+    }
+
+    private static long weigh(final List<String> list) {
+        long bytes = 0;
+        if (list != null) {
+            for (final String s : list) {
+                bytes += weigh(s);
+            }
+        }
+        return bytes;
+    }
+
+    private static long weigh(final String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    private static class CachedPlayer {
+        private final Map<String, PlayerDao> states = new HashMap<String, PlayerDao>();
+        private final Map<String, PlayerSnapshot> decoded = new HashMap<String, PlayerSnapshot>();
+        private final Set<String> missing = new HashSet<String>();
+        private final Map<String, Long> weights = new HashMap<String, Long>();
+        private long weight;
+        private boolean complete;
+
+        private boolean isMissing(final String state) {
+            return missing.contains(state) || (complete && !states.containsKey(state));
+        }
+    }
+}
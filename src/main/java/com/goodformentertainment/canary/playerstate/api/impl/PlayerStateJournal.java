@@ -0,0 +1,359 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerDao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped journal of the PlayerDaos waiting to be written to the database.
+ * Every queued snapshot is appended on save, which is a copy into the page cache and needs no
+ * system call, so the state survives a crash of the server process between a save and the next
+ * flush. After each flush the journal is rewritten with only the snapshots still waiting. On start
+ * the snapshots left in the journal are read back so they can be written to the database.
+ * <p>
+ * The journal takes turns between two files. A rewrite fills the file not in use and only then
+ * gives it a higher generation in its header, so a crash part way through a rewrite leaves the
+ * previous file in charge with all of its snapshots. On start the file with the highest valid
+ * generation is read.
+ * <p>
+ * Each file starts with a header of a magic number, the generation and a CRC32 of both. Each
+ * record is the length of its payload, a CRC32 of the payload and the payload itself. A length of
+ * zero ends the journal; a record with a bad checksum, such as one cut short by a crash, ends it as
+ * well.
+ */
+class PlayerStateJournal {
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    private static final int MAGIC = 0x50534a32;
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int HEADER_SIZE = 8;
+
+    private final Region[] regions;
+    private final PlayerStateMetrics metrics;
+    private Region active;
+
+    PlayerStateJournal(final File file, final PlayerStateMetrics metrics) {
+        regions = new Region[]{
+                new Region(file), new Region(new File(file.getPath() + ".1"))
+        };
+        this.metrics = metrics;
+    }
+
+    /**
+     * Open the journal files, creating them if needed, and read the snapshots they hold. The
+     * latest snapshot of each state wins. The journal keeps its contents until the first call to
+     * {@link #rewrite(WriteBehindQueue)}.
+     *
+     * @return The snapshots left from the last run, in the order they were saved.
+     * @throws IOException If the journal could not be opened.
+     */
+    synchronized List<PlayerDao> open() throws IOException {
+        final File dir = regions[0].file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        for (final Region region : regions) {
+            region.open();
+        }
+        active = regions[0];
+        for (final Region region : regions) {
+            if (region.generation > active.generation) {
+                active = region;
+            }
+        }
+        if (active.generation == 0) {
+            // A new journal
+            active.buffer.putInt(FILE_HEADER_SIZE, 0);
+            active.writeHeader(1);
+        }
+
+        final MappedByteBuffer buffer = active.buffer;
+        buffer.position(FILE_HEADER_SIZE);
+        final Map<String, PlayerDao> recovered = new LinkedHashMap<String, PlayerDao>();
+        final CRC32 crc = new CRC32();
+        int records = 0;
+        try {
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final int start = buffer.position();
+                final int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - 4) {
+                    buffer.position(start);
+                    break;
+                }
+                final int checksum = buffer.getInt();
+                final byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    buffer.position(start);
+                    break;
+                }
+                final PlayerDao playerDao = read(payload);
+                final String key = playerDao.uuid + '\n' + playerDao.state;
+                recovered.remove(key);
+                recovered.put(key, playerDao);
+                records++;
+            }
+        } catch (final BufferUnderflowException e) {
+            // A record cut short ends the journal
+        }
+        metrics.recordJournalRecovery(records, recovered.size());
+        return new ArrayList<PlayerDao>(recovered.values());
+    }
+
+    /**
+     * Append a snapshot that was just queued.
+     *
+     * @param playerDao The queued PlayerDao.
+     */
+    synchronized void append(final PlayerDao playerDao) {
+        if (active != null) {
+            append(active, playerDao);
+        }
+    }
+
+    /**
+     * Replace the contents of the journal with the snapshots still waiting to be written. Must only
+     * be called while no flush is writing, and snapshots must be appended after they are queued:
+     * the queue is read while appends are blocked, so every snapshot is either read here or
+     * appended afterwards.
+     *
+     * @param queue The queue of PlayerDaos waiting to be written.
+     */
+    synchronized void rewrite(final WriteBehindQueue queue) {
+        if (active != null) {
+            final Region next = active == regions[0] ? regions[1] : regions[0];
+            next.buffer.position(FILE_HEADER_SIZE);
+            next.buffer.putInt(FILE_HEADER_SIZE, 0);
+            for (final PlayerDao playerDao : queue.snapshot()) {
+                append(next, playerDao);
+            }
+            // Switch files only once the new one is complete
+            next.writeHeader(active.generation + 1);
+            active = next;
+        }
+    }
+
+    synchronized void close() {
+        if (active != null) {
+            active = null;
+            for (final Region region : regions) {
+                try {
+                    region.close();
+                } catch (final IOException e) {
+                    metrics.recordJournalError();
+                }
+            }
+        }
+    }
+
+    private void append(final Region region, final PlayerDao playerDao) {
+        final long start = System.nanoTime();
+        try {
+            final byte[] payload = write(playerDao);
+            region.ensureCapacity(HEADER_SIZE + payload.length + 4);
+            final MappedByteBuffer buffer = region.buffer;
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            final int position = buffer.position();
+            // Terminate first so a reader never sees the length before the payload is complete
+            buffer.putInt(position + HEADER_SIZE + payload.length, 0);
+            buffer.position(position + 4);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+            buffer.putInt(position, payload.length);
+            metrics.recordJournalAppend(HEADER_SIZE + payload.length, System.nanoTime() - start);
+        } catch (final IOException e) {
+            metrics.recordJournalError();
+        }
+    }
+
+    private static int headerChecksum(final long generation) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC);
+        header.putLong(generation);
+        crc.update(header.array());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * One of the two journal files and its mapping.
+     */
+    private static final class Region {
+        private final File file;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private long generation;
+
+        private Region(final File file) {
+            this.file = file;
+        }
+
+        /**
+         * Map the file and read its generation, 0 if the header is not valid.
+         */
+        private void open() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            map(Math.max(INITIAL_SIZE, channel.size()));
+            generation = 0;
+            if (buffer.getInt(0) == MAGIC) {
+                final long stored = buffer.getLong(4);
+                if (stored > 0 && buffer.getInt(12) == headerChecksum(stored)) {
+                    generation = stored;
+                }
+            }
+        }
+
+        /**
+         * Make this file the journal by giving it a generation. The checksum is written last, so a
+         * header cut short by a crash is not valid.
+         */
+        private void writeHeader(final long next) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(4, next);
+            buffer.putInt(12, headerChecksum(next));
+            generation = next;
+        }
+
+        private void ensureCapacity(final int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                final int position = buffer.position();
+                long size = buffer.capacity();
+                while (size - position < bytes) {
+                    size *= 2;
+                }
+                map(size);
+                buffer.position(position);
+            }
+        }
+
+        private void map(final long size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void close() throws IOException {
+            buffer.force();
+            buffer = null;
+            channel.close();
+            raf.close();
+        }
+    }
+
+    private static byte[] write(final PlayerDao playerDao) throws IOException {
+        // Read before the fields, a section loaded meanwhile is only recorded once it is complete
+        final int loaded = playerDao.getLoadedSections();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, playerDao.uuid);
+        writeString(out, playerDao.state);
+        out.writeInt(playerDao.age);
+        writeList(out, playerDao.effects);
+        out.writeFloat(playerDao.exhaustion);
+        out.writeInt(playerDao.experience);
+        out.writeFloat(playerDao.health);
+        writeString(out, playerDao.homeLocation);
+        out.writeInt(playerDao.hunger);
+        writeString(out, playerDao.location);
+        out.writeDouble(playerDao.maxHealth);
+        out.writeInt(playerDao.gameMode);
+        writeString(out, playerDao.prefix);
+        writeString(out, playerDao.spawnLocation);
+        writeList(out, playerDao.enderInventory);
+        writeList(out, playerDao.inventory);
+        writeList(out, playerDao.equipment);
+        writeString(out, playerDao.achievements);
+        writeString(out, playerDao.statistics);
+        out.writeInt(loaded);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PlayerDao read(final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final PlayerDao playerDao = new PlayerDao();
+        playerDao.uuid = readString(in);
+        playerDao.state = readString(in);
+        playerDao.age = in.readInt();
+        playerDao.effects = readList(in);
+        playerDao.exhaustion = in.readFloat();
+        playerDao.experience = in.readInt();
+        playerDao.health = in.readFloat();
+        playerDao.homeLocation = readString(in);
+        playerDao.hunger = in.readInt();
+        playerDao.location = readString(in);
+        playerDao.maxHealth = in.readDouble();
+        playerDao.gameMode = in.readInt();
+        playerDao.prefix = readString(in);
+        playerDao.spawnLocation = readString(in);
+        playerDao.enderInventory = readList(in);
+        playerDao.inventory = readList(in);
+        playerDao.equipment = readList(in);
+        playerDao.achievements = readString(in);
+        playerDao.statistics = readString(in);
+        playerDao.setLoadedSections(in.readInt());
+        return playerDao;
+    }
+
+    private static void writeString(final DataOutputStream out, final String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] utf = s.getBytes("UTF-8");
+            out.writeInt(utf.length);
+            out.write(utf);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] utf = new byte[length];
+        in.readFully(utf);
+        return new String(utf, "UTF-8");
+    }
+
+    private static void writeList(final DataOutputStream out, final List<String> list)
+            throws IOException {
+        if (list == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(list.size());
+            for (final String s : list) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    private static List<String> readList(final DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        final List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+}
@@ -3,6 +3,7 @@ package com.goodformentertainment.canary.playerstate.api.impl;
 import com.goodformentertainment.canary.playerstate.PlayerDao;
 import com.goodformentertainment.canary.playerstate.PlayerStatePlugin;
 import com.goodformentertainment.canary.playerstate.api.IPlayerStateManager;
+import com.goodformentertainment.canary.playerstate.api.PlayerStateCallback;
 import com.goodformentertainment.canary.playerstate.api.SaveState;
 import net.canarymod.Canary;
 import net.canarymod.api.GameMode;
@@ -10,84 +11,606 @@ import net.canarymod.api.entity.living.humanoid.Player;
 import net.canarymod.api.factory.ItemFactory;
 import net.canarymod.api.factory.NBTFactory;
 import net.canarymod.api.factory.PotionFactory;
-import net.canarymod.api.factory.StatisticsFactory;
 import net.canarymod.api.inventory.Inventory;
 import net.canarymod.api.inventory.Item;
 import net.canarymod.api.inventory.ItemType;
 import net.canarymod.api.inventory.PlayerInventory;
 import net.canarymod.api.nbt.CompoundTag;
 import net.canarymod.api.potion.PotionEffect;
-import net.canarymod.api.statistics.Achievement;
-import net.canarymod.api.statistics.Achievements;
-import net.canarymod.api.statistics.Stat;
-import net.canarymod.api.statistics.Statistics;
 import net.canarymod.api.world.position.Location;
 import net.canarymod.database.exceptions.DatabaseReadException;
 import net.canarymod.database.exceptions.DatabaseWriteException;
-import net.visualillusionsent.utils.TaskManager;
+import net.canarymod.tasks.ServerTask;
+import net.canarymod.tasks.TaskOwner;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PlayerStateManager implements IPlayerStateManager {
     private static final PotionFactory POTION_FACTORY = Canary.factory().getPotionFactory();
     private static final ItemFactory ITEM_FACTORY = Canary.factory().getItemFactory();
     private static final NBTFactory NBT_FACTORY = Canary.factory().getNBTFactory();
-    private static final StatisticsFactory STATS_FACTORY = Canary.factory().getStatisticsFactory();
+    private static final StatCodec STATISTICS_CODEC = StatCodec.forStatistics();
+    private static final StatCodec ACHIEVEMENTS_CODEC = StatCodec.forAchievements();
+    private static final SaveState[] LOCATIONS_ONLY = new SaveState[]{SaveState.LOCATIONS};
 
-    private SavePlayerDaoTask task;
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final int IO_THREADS = 2;
+    private static final long PREFETCH_WAIT_MILLIS = 500;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    private static final int DEFAULT_FLUSH_LANES = 2;
+    private static final long DEFAULT_MAX_AGE_SECONDS = 60;
+    private static final int DEFAULT_FLUSH_THRESHOLD = 200;
+    private static final long DEFAULT_SLOW_FLUSH_MILLIS = 2000;
+    private static final long DEFAULT_MAX_BACKOFF_SECONDS = 120;
+    private static final long DEFAULT_SHUTDOWN_DEADLINE_SECONDS = 10;
+    private static final int DEFAULT_ENCODE_THREADS = 2;
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+    private static final long DEFAULT_TICK_BUDGET_MILLIS = 5;
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 3000;
+    private static final int SETTLE_LOCKS = 64;
 
-    private final Map<String, Map<String, PlayerDao>> states;
-    private final Collection<PlayerDao> persistDaos;
+    private final FlushScheduler scheduler;
+    private volatile ExecutorService ioExecutor;
+    private volatile TaskOwner taskOwner;
+    private volatile ExecutorService[] flushLanes;
+    private volatile ExecutorService[] encodeLanes;
+    private volatile PlayerStateJournal journal;
+    private volatile boolean journalSaves;
+    private long shutdownDeadlineMillis;
+    private int flushLaneCount;
+    private int encodeThreadCount;
+    private String itemFormat;
+    private ItemCodec itemCodec;
+    private volatile int maxBatchSize;
+    private volatile long tickBudgetNanos;
+    private volatile long debounceNanos;
+
+    private final PlayerStateMetrics metrics;
+    private final WriteBehindQueue persistQueue;
+    private final PlayerStateCache cache;
+    private final RestoreScheduler restores;
+    private ServerTask tickTask;
+    private final Lock flushLock;
+    private final AtomicBoolean migrating;
+    private final ConcurrentMap<String, Future<?>> prefetches;
+    private final ConcurrentMap<String, Future<?>> encodes;
+    private final ConcurrentMap<String, PlayerSnapshot> parked;
+    private final Object[] settleLocks;
+    private final ConcurrentMap<String, Long> lastTransitions;
+    private final Set<String> knownPlayers;
 
     public PlayerStateManager() {
-        states = new HashMap<String, Map<String, PlayerDao>>();
-        persistDaos = new HashSet<PlayerDao>();
+        metrics = new PlayerStateMetrics();
+        persistQueue = new WriteBehindQueue(metrics);
+        cache = new PlayerStateCache(persistQueue, metrics, DEFAULT_CACHE_BYTES);
+        restores = new RestoreScheduler(new RestoreScheduler.SectionApplier() {
+            @Override
+            public void apply(final PlayerSnapshot decoded, final SaveState save,
+                              final Player player) {
+                applySection(decoded, save, player);
+            }
+        }, metrics);
+        flushLock = new ReentrantLock();
+        migrating = new AtomicBoolean();
+        prefetches = new ConcurrentHashMap<String, Future<?>>();
+        encodes = new ConcurrentHashMap<String, Future<?>>();
+        parked = new ConcurrentHashMap<String, PlayerSnapshot>();
+        settleLocks = new Object[SETTLE_LOCKS];
+        for (int i = 0; i < settleLocks.length; i++) {
+            settleLocks[i] = new Object();
+        }
+        lastTransitions = new ConcurrentHashMap<String, Long>();
+        knownPlayers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        setItemFormat(ItemCodec.JSON);
+        maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        scheduler = new FlushScheduler(new SavePlayerDaoTask(), persistQueue, metrics);
+        setFlushSchedule(TimeUnit.SECONDS.toMillis(SAVE_DELAY_SECONDS),
+                TimeUnit.SECONDS.toMillis(DEFAULT_MAX_AGE_SECONDS), DEFAULT_FLUSH_THRESHOLD,
+                DEFAULT_SLOW_FLUSH_MILLIS, TimeUnit.SECONDS.toMillis(DEFAULT_MAX_BACKOFF_SECONDS));
+        flushLaneCount = DEFAULT_FLUSH_LANES;
+        encodeThreadCount = DEFAULT_ENCODE_THREADS;
+        shutdownDeadlineMillis = TimeUnit.SECONDS.toMillis(DEFAULT_SHUTDOWN_DEADLINE_SECONDS);
+        tickBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TICK_BUDGET_MILLIS);
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Get the persistence counters for this manager.
+     *
+     * @return The PlayerStateMetrics.
+     */
+    public PlayerStateMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the owner of the server tasks that finish asynchronous loads.
+     *
+     * @param owner The TaskOwner, usually the plugin.
+     */
+    public void setTaskOwner(final TaskOwner owner) {
+        taskOwner = owner;
+    }
+
+    /**
+     * Set how long loading players may take in a single tick, both when many are loaded at once and
+     * when applying loaded states. At least one player or section is handled each tick regardless.
+     *
+     * @param millis The budget in milliseconds.
+     */
+    public void setTickBudget(final long millis) {
+        tickBudgetNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        restores.setBudget(tickBudgetNanos);
+    }
+
+    /**
+     * Set how long a player must stay in a world before the states saved on the way there are
+     * persisted. Until then they are kept in memory only, so that a player going back and forth
+     * through a portal swaps between them without writing or reading anything.
+     *
+     * @param millis The debounce window in milliseconds, 0 to persist every save at once.
+     */
+    public void setDebounce(final long millis) {
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Set the maximum approximate size of the player states kept in memory.
+     *
+     * @param bytes The maximum size in bytes.
+     */
+    public void setCacheSize(final long bytes) {
+        cache.setMaxWeight(bytes);
+    }
+
+    /**
+     * Set the format used to store inventories, ender inventories and equipment. States stored in
+     * any other format can still be loaded and are converted the next time they are saved.
+     *
+     * @param format One of json, binary or compressed.
+     */
+    public void setItemFormat(final String format) {
+        itemCodec = ItemCodec.forFormat(format);
+        itemFormat = format;
+    }
+
+    /**
+     * Set the maximum number of rows written together in a single database operation.
+     *
+     * @param size The maximum batch size, at least 1.
+     */
+    public void setMaxBatchSize(final int size) {
+        maxBatchSize = Math.max(1, size);
+    }
+
+    /**
+     * Set when saved states are flushed to the database. A flush runs once the queue reaches the
+     * threshold, once the interval has passed since both the last flush and the oldest waiting
+     * save, or once a state has waited for the maximum age, whichever comes first. After a flush
+     * slower than the slow flush limit, flushes pause for an increasing back-off that only the
+     * maximum age overrides.
+     *
+     * @param intervalMillis   The time a state waits to be flushed with others queued after it.
+     * @param maxAgeMillis     The longest time a state waits, even while backing off.
+     * @param threshold        The number of waiting states that triggers a flush.
+     * @param slowFlushMillis  The flush duration above which flushes back off.
+     * @param maxBackoffMillis The longest pause after slow flushes.
+     */
+    public void setFlushSchedule(final long intervalMillis, final long maxAgeMillis,
+                                 final int threshold, final long slowFlushMillis,
+                                 final long maxBackoffMillis) {
+        scheduler.configure(intervalMillis, maxAgeMillis, threshold, slowFlushMillis,
+                maxBackoffMillis);
+    }
+
+    /**
+     * Open the journal and write any states left in it by a previous run, either because the server
+     * crashed or because they could not be written before the shutdown deadline. Must be called
+     * before the save Thread is started and before any player joins.
+     *
+     * @param file         The journal file.
+     * @param journalSaves True to record every save in the journal until it is written, false to
+     *                     only use the journal for states left over at shutdown.
+     * @return The number of states recovered from the journal.
+     * @throws IOException If the journal could not be opened.
+     */
+    public int openJournal(final File file, final boolean journalSaves) throws IOException {
+        final PlayerStateJournal opened = new PlayerStateJournal(file, metrics);
+        final List<PlayerDao> recovered = opened.open();
+        journal = opened;
+        this.journalSaves = journalSaves;
+        for (final PlayerDao playerDao : recovered) {
+            // Whether or not the row exists, the recovered state is newer
+            playerDao.markAllDirty();
+            cache.put(playerDao);
+            knownPlayers.add(playerDao.uuid);
+            persistQueue.enqueue(playerDao);
+        }
+        // States that still fail to write stay queued and are kept in the journal
+        flush();
+        opened.rewrite(persistQueue);
+        return recovered.size();
+    }
+
+    /**
+     * Set how long stopping the save Thread may spend writing the states still queued. States not
+     * written by then are kept in the journal and written when the journal is next opened.
+     *
+     * @param millis The deadline in milliseconds.
+     */
+    public void setShutdownDeadline(final long millis) {
+        shutdownDeadlineMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Set the number of Threads writing player states to the database in parallel. The states of a
+     * player are always written by the same Thread, in order. Takes effect the next time the save
+     * Thread is started.
+     *
+     * @param lanes The number of flush Threads, at least 1.
+     */
+    public void setFlushLanes(final int lanes) {
+        flushLaneCount = Math.max(1, lanes);
+    }
+
+    /**
+     * Set the number of Threads encoding saved states. Saves only capture the state of the player
+     * on the server Thread and leave the encoding to these Threads; with 0 the whole save runs on
+     * the server Thread. Takes effect the next time the save Thread is started.
+     *
+     * @param threads The number of encode Threads, at least 0.
+     */
+    public void setEncodeThreads(final int threads) {
+        encodeThreadCount = Math.max(0, threads);
+    }
+
+    /**
+     * Convert the items of every stored state that is not loaded to the configured format on a
+     * background Thread of its own, one player at a time. The result is written to the log. Does
+     * nothing if a migration is already running.
+     */
+    public void migrateItemFormat() {
+        if (migrating.compareAndSet(false, true)) {
+            final Thread thread = new NamedThreadFactory("Migrate").newThread(
+                    new MigrateItemsTask());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        } else {
+            PlayerStatePlugin.LOG.info("A migration of the item format is already running");
+        }
+    }
+
+    /**
+     * Unload the cached states of a player once any pending save for that player has been written.
+     *
+     * @param player The Player to unload.
+     */
+    public void unloadPlayer(final Player player) {
+        final String uuid = player.getUUIDString();
+        final Future<?> prefetch = prefetches.remove(uuid);
+        if (prefetch != null) {
+            prefetch.cancel(false);
+        }
+        knownPlayers.remove(uuid);
+        restores.cancel(uuid);
+        // Persist the states the player left behind while still changing worlds
+        lastTransitions.remove(uuid);
+        settlePlayer(uuid);
+        cache.unload(uuid);
+    }
+
+    /**
+     * Start loading every state of a player into memory on a background Thread. A load that needs
+     * one of these states before the prefetch completes waits briefly for it and otherwise reads
+     * the state itself.
+     *
+     * @param player The Player to prefetch.
+     */
+    public void prefetchPlayer(final Player player) {
+        final String uuid = player.getUUIDString();
+        if (ioExecutor != null && !prefetches.containsKey(uuid)) {
+            final FutureTask<Void> prefetch = new FutureTask<Void>(new PrefetchTask(uuid), null);
+            if (prefetches.putIfAbsent(uuid, prefetch) == null) {
+                ioExecutor.execute(prefetch);
+            }
+        }
+    }
+
+    /**
+     * Check whether a loaded inventory is still waiting to be applied to a player. The player must
+     * not be allowed to use the old inventory meanwhile.
+     *
+     * @param player The Player.
+     * @return True if the inventory of the player is about to be replaced.
+     */
+    public boolean isRestoringInventory(final Player player) {
+        return restores.isRestoringInventory(player.getUUIDString());
+    }
+
+    /**
+     * Apply whatever remains of the last load of a player right away.
+     *
+     * @param player The Player.
+     */
+    public void completeRestore(final Player player) {
+        restores.complete(player.getUUIDString());
+    }
+
+    /**
+     * Drop the cached copy of a player state so that the next load reads it from the database.
+     *
+     * @param player The Player.
+     * @param state  The name of the state.
+     */
+    public void invalidatePlayerState(final Player player, final String state) {
+        settle(player.getUUIDString() + '\n' + state);
+        cache.invalidate(player.getUUIDString(), state);
     }
 
     @Override
     public void startSaveThread() {
-        task = new SavePlayerDaoTask();
-        TaskManager.scheduleContinuedTaskInSeconds(task, SAVE_DELAY_SECONDS, SAVE_DELAY_SECONDS);
+        ioExecutor = Executors.newFixedThreadPool(IO_THREADS, new NamedThreadFactory("IO"));
+        final NamedThreadFactory flushThreadFactory = new NamedThreadFactory("Flush");
+        flushLanes = new ExecutorService[flushLaneCount];
+        for (int i = 0; i < flushLanes.length; i++) {
+            flushLanes[i] = Executors.newSingleThreadExecutor(flushThreadFactory);
+        }
+        metrics.setFlushLanes(flushLanes.length);
+        if (encodeThreadCount > 0) {
+            final NamedThreadFactory encodeThreadFactory = new NamedThreadFactory("Encode");
+            final ExecutorService[] lanes = new ExecutorService[encodeThreadCount];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = Executors.newSingleThreadExecutor(encodeThreadFactory);
+            }
+            encodeLanes = lanes;
+        }
+        scheduler.start();
+        if (taskOwner != null) {
+            tickTask = new ServerTask(taskOwner, 1, true) {
+                @Override
+                public void run() {
+                    restores.tick();
+                    settleQuiet();
+                }
+            };
+            Canary.getServer().addSynchronousTask(tickTask);
+            restores.start();
+        }
     }
 
     @Override
     public void stopSaveThread() {
-        TaskManager.removeTask(task);
-        synchronized (persistDaos) {
-            if (!persistDaos.isEmpty()) {
-                for (final PlayerDao playerDao : persistDaos) {
-                    try {
-                        playerDao.update();
-                    } catch (final DatabaseWriteException e) {
-                        PlayerStatePlugin.LOG.info("Error saving state " + playerDao.state + " for "
-                                + playerDao.uuid);
+        if (tickTask != null) {
+            Canary.getServer().removeSynchronousTask(tickTask);
+            tickTask = null;
+        }
+        restores.stop();
+        lastTransitions.clear();
+        for (final String key : parked.keySet()) {
+            settle(key);
+        }
+        scheduler.stop();
+        for (final Runnable unstarted : ioExecutor.shutdownNow()) {
+            if (unstarted instanceof AsyncRead) {
+                ((AsyncRead<?>) unstarted).result.cancel(false);
+            }
+        }
+        ioExecutor = null;
+        prefetches.clear();
+
+        // Finish encoding, then write in parallel until the deadline and keep the rest
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(shutdownDeadlineMillis);
+        final ExecutorService[] lanes = encodeLanes;
+        encodeLanes = null;
+        if (lanes != null) {
+            for (final ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+            try {
+                for (final ExecutorService lane : lanes) {
+                    if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS)) {
+                        PlayerStatePlugin.LOG.warn("Player states still encoding on shutdown");
                     }
                 }
-                persistDaos.clear();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final int[] counts = flush(deadline);
+        for (final ExecutorService lane : flushLanes) {
+            lane.shutdown();
+        }
+        flushLanes = null;
+        final int unsaved = persistQueue.snapshot().size();
+        final boolean spilled = journal != null;
+        if (spilled) {
+            if (unsaved > 0 || journalSaves) {
+                journal.rewrite(persistQueue);
             }
+            journal.close();
+            journal = null;
         }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        metrics.recordShutdown(counts[0], counts[1], unsaved, millis);
+        PlayerStatePlugin.LOG.info("Wrote " + counts[0] + " player states on shutdown in " + millis
+                + "ms, " + counts[1] + " failed, " + unsaved
+                + (spilled ? " kept in the journal" : " not saved"));
     }
 
     @Override
     public void savePlayerState(final Player player, final String state, final SaveState[] saves) {
-        Map<String, PlayerDao> playerStateMap = states.get(player.getUUIDString());
-        if (playerStateMap == null) {
-            playerStateMap = new HashMap<String, PlayerDao>();
-            states.put(player.getUUIDString(), playerStateMap);
+        save(player, state, saves);
+
+        PlayerStatePlugin.LOG.info("Saved " + player.getDisplayName() + " at state " + state);
+    }
+
+    private void save(final Player player, final String state, final SaveState[] saves) {
+        final long start = System.nanoTime();
+        // Never capture a player whose last load is still being applied
+        restores.complete(player.getUUIDString());
+        final PlayerSnapshot snapshot = capture(player, state, saves);
+        knownPlayers.add(snapshot.uuid);
+        // A state kept from a world change is older, it must be encoded first
+        settle(snapshot.key());
+        queueEncode(snapshot);
+        metrics.recordSave(System.nanoTime() - start);
+    }
+
+    /**
+     * Save the state a player is leaving while changing worlds. The captured state is only kept in
+     * memory, merged into any kept earlier, and a load of it meanwhile applies it straight from
+     * there. Once the player has stayed in a world for the whole debounce window, the states kept
+     * are persisted like any other save. Anything that reads a kept state in another way persists
+     * it first.
+     *
+     * @param player The Player to save.
+     * @param state  The name of the state to save.
+     * @param saves  The SaveStates to use for this save.
+     */
+    public void savePlayerStateDebounced(final Player player, final String state,
+                                         final SaveState[] saves) {
+        if (debounceNanos <= 0 || tickTask == null) {
+            savePlayerState(player, state, saves);
+            return;
         }
-        PlayerDao playerDao = playerStateMap.get(state);
-        if (playerDao == null) {
-            playerDao = new PlayerDao();
-            playerDao.uuid = player.getUUIDString();
-            playerDao.state = state;
-            playerStateMap.put(state, playerDao);
+        final long start = System.nanoTime();
+        restores.complete(player.getUUIDString());
+        final PlayerSnapshot snapshot = capture(player, state, saves);
+        knownPlayers.add(snapshot.uuid);
+        // The kept state counts as a pending write, so the cache keeps the player until it settles
+        persistQueue.reserve(snapshot.uuid);
+        final String key = snapshot.key();
+        while (true) {
+            final PlayerSnapshot previous = parked.get(key);
+            if (previous == null) {
+                if (parked.putIfAbsent(key, snapshot) == null) {
+                    break;
+                }
+            } else if (parked.replace(key, previous, previous.merge(snapshot))) {
+                // The kept state already holds a reservation
+                persistQueue.release(snapshot.uuid);
+                metrics.recordCoalescedSave();
+                break;
+            }
         }
+        lastTransitions.put(snapshot.uuid, start);
+        metrics.recordSave(System.nanoTime() - start);
+
+        PlayerStatePlugin.LOG.info("Saved " + player.getDisplayName() + " at state " + state);
+    }
+
+    /**
+     * Persist a state kept by {@link #savePlayerStateDebounced(Player, String, SaveState[])}.
+     * Safe to call from any Thread. Taking a kept state and queueing its encode happen under the
+     * lock of its key, so a newer state kept and settled meanwhile is always encoded after it, and
+     * a caller that finds nothing kept queues its own encode after it too.
+     *
+     * @param key The key of the state.
+     */
+    private void settle(final String key) {
+        synchronized (settleLocks[(key.hashCode() & 0x7fffffff) % settleLocks.length]) {
+            final PlayerSnapshot snapshot = parked.remove(key);
+            if (snapshot != null) {
+                queueEncode(snapshot);
+                persistQueue.release(snapshot.uuid);
+                metrics.recordSettledSave();
+            }
+        }
+    }
+
+    private void settlePlayer(final String uuid) {
+        final String prefix = uuid + '\n';
+        for (final String key : parked.keySet()) {
+            if (key.startsWith(prefix)) {
+                settle(key);
+            }
+        }
+    }
+
+    /**
+     * Persist the states kept for the players who have stayed put for the whole debounce window.
+     * Runs on the server Thread every tick.
+     */
+    private void settleQuiet() {
+        if (!lastTransitions.isEmpty()) {
+            final long now = System.nanoTime();
+            final Iterator<Map.Entry<String, Long>> it = lastTransitions.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Long> entry = it.next();
+                if (now - entry.getValue() >= debounceNanos) {
+                    it.remove();
+                    settlePlayer(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode a captured snapshot into the next version of its state on the encode lane of its
+     * player, and queue it to be written.
+     *
+     * @param snapshot The captured values.
+     */
+    private void queueEncode(final PlayerSnapshot snapshot) {
+        // The player has a pending write from now on, so the cache keeps its states until written
+        persistQueue.reserve(snapshot.uuid);
+        final EncodeTask encode = new EncodeTask(snapshot);
+        encodes.put(encode.key, encode);
+        final ExecutorService[] lanes = encodeLanes;
+        if (lanes != null) {
+            try {
+                // Saves of a player are encoded in order, each builds on the previous version
+                lanes[(snapshot.uuid.hashCode() & 0x7fffffff) % lanes.length].execute(encode);
+            } catch (final RejectedExecutionException e) {
+                encode.run();
+            }
+        } else {
+            encode.run();
+        }
+    }
+
+    /**
+     * Copy the values of the saved sections out of a player. Runs on the server Thread, so it does
+     * no encoding.
+     *
+     * @param player The Player.
+     * @param state  The name of the state.
+     * @param saves  The sections to capture.
+     * @return The captured values.
+     */
+    private PlayerSnapshot capture(final Player player, final String state,
+                                   final SaveState[] saves) {
+        final PlayerSnapshot snapshot = new PlayerSnapshot(player.getUUIDString(), state, saves);
 
         // playerDao.age = player.getAge();
         // final int fire = player.getFireTicks();
@@ -97,65 +620,222 @@ public class PlayerStateManager implements IPlayerStateManager {
         for (final SaveState save : saves) {
             switch (save) {
                 case ACHIEVEMENTS:
-                    playerDao.achievements = serializeAchievements(player);
+                    snapshot.achievements = ACHIEVEMENTS_CODEC.capture(player);
                     break;
                 case CONDITIONS:
-                    playerDao.effects = serializePotionEffects(player.getAllActivePotionEffects());
-                    playerDao.exhaustion = player.getExhaustionLevel();
-                    playerDao.experience = player.getExperience();
-                    playerDao.health = player.getHealth();
-                    playerDao.hunger = player.getHunger();
-                    playerDao.maxHealth = player.getMaxHealth();
+                    snapshot.effects = capturePotionEffects(player.getAllActivePotionEffects());
+                    snapshot.exhaustion = player.getExhaustionLevel();
+                    snapshot.experience = player.getExperience();
+                    snapshot.health = player.getHealth();
+                    snapshot.hunger = player.getHunger();
+                    snapshot.maxHealth = player.getMaxHealth();
                     break;
                 case GAMEMODE:
-                    playerDao.gameMode = player.getModeId();
+                    snapshot.gameMode = player.getModeId();
                     break;
                 case INVENTORY:
-                    playerDao.enderInventory = serializeInventory(player.getEnderChestInventory());
-                    playerDao.inventory = serializeInventory(player.getInventory());
-                    playerDao.equipment = serializeEquipment(player.getInventory());
+                    snapshot.enderItems = captureInventory(player.getEnderChestInventory());
+                    snapshot.items = captureInventory(player.getInventory());
+                    snapshot.equipment = captureEquipment(player.getInventory());
                     break;
                 case LOCATIONS:
-                    playerDao.homeLocation = player.getHome().toString();
-                    playerDao.spawnLocation = player.getSpawnPosition().toString();
-                    playerDao.location = player.getLocation().toString();
+                    snapshot.homeLocation = player.getHome().toString();
+                    snapshot.spawnLocation = player.getSpawnPosition().toString();
+                    snapshot.location = player.getLocation().toString();
                     break;
                 case PREFIX:
-                    playerDao.prefix = player.getPrefix();
+                    snapshot.prefix = player.getPrefix();
                     break;
                 case STATISTICS:
-                    playerDao.statistics = serializeStatistics(player);
+                    snapshot.statistics = STATISTICS_CODEC.capture(player);
                     break;
                 default:
                     throw new UnsupportedOperationException("The specified save is not supported: " + save);
             }
         }
+        return snapshot;
+    }
+
+    /**
+     * Encode a snapshot into the next version of its state and queue that version to be written.
+     * Runs on an encode Thread, in the order the saves of the player were made.
+     *
+     * @param snapshot The captured values.
+     */
+    private void encodeAndQueue(final PlayerSnapshot snapshot) {
+        final long start = System.nanoTime();
+        try {
+            // Published PlayerDaos are never modified, the changes go into a new version
+            final PlayerDao previous = cache.peek(snapshot.uuid, snapshot.state);
+            final PlayerDao playerDao;
+            if (previous != null) {
+                playerDao = previous.copy();
+            } else {
+                playerDao = new PlayerDao();
+                playerDao.uuid = snapshot.uuid;
+                playerDao.state = snapshot.state;
+                // A new row has to be written in full
+                playerDao.markAllDirty();
+            }
+            encode(snapshot, playerDao);
+            playerDao.markLoaded(PlayerDao.toSections(snapshot.saves));
 
-        synchronized (persistDaos) {
-            persistDaos.add(playerDao);
+            if (playerDao.isDirty()) {
+                // The captured values are the decoded form of the sections just saved
+                final PlayerSnapshot previousDecoded = previous != null
+                        ? cache.getDecoded(previous) : null;
+                final PlayerSnapshot decoded;
+                if (previousDecoded != null) {
+                    decoded = previousDecoded.merge(snapshot);
+                } else if (encodeLanes != null) {
+                    decoded = decode(playerDao);
+                } else {
+                    // Saving on the server Thread, leave decoding to the first load
+                    decoded = null;
+                }
+                cache.put(playerDao, decoded);
+                persistQueue.enqueue(playerDao);
+                // Journal after queueing, so a rewrite of the journal never misses this snapshot
+                final PlayerStateJournal currentJournal = journal;
+                if (currentJournal != null && journalSaves) {
+                    currentJournal.append(playerDao);
+                }
+                scheduler.notifyEnqueued();
+            } else {
+                metrics.recordUnchangedSave();
+            }
+        } catch (final RuntimeException e) {
+            PlayerStatePlugin.LOG.error("Error encoding state " + snapshot.state + " of "
+                    + snapshot.uuid, e);
+        } finally {
+            persistQueue.release(snapshot.uuid);
+            // The player may have been unloaded while this save was being encoded
+            cache.purgeUnloaded();
+            metrics.recordSaveEncode(System.nanoTime() - start);
         }
+    }
 
-        PlayerStatePlugin.LOG.info("Saved " + player.getDisplayName() + " at state " + state);
+    private void encode(final PlayerSnapshot snapshot, final PlayerDao playerDao) {
+        // Compare against the previous save so unchanged sections are not written again
+        for (final SaveState save : snapshot.saves) {
+            switch (save) {
+                case ACHIEVEMENTS:
+                    final String achievements = ACHIEVEMENTS_CODEC.encode(snapshot.achievements);
+                    if (!same(achievements, playerDao.achievements)) {
+                        playerDao.achievements = achievements;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case CONDITIONS:
+                    final List<String> effects = serializePotionEffects(snapshot.effects);
+                    if (!same(effects, playerDao.effects)
+                            || snapshot.exhaustion != playerDao.exhaustion
+                            || snapshot.experience != playerDao.experience
+                            || snapshot.health != playerDao.health
+                            || snapshot.hunger != playerDao.hunger
+                            || snapshot.maxHealth != playerDao.maxHealth) {
+                        playerDao.effects = effects;
+                        playerDao.exhaustion = snapshot.exhaustion;
+                        playerDao.experience = snapshot.experience;
+                        playerDao.health = snapshot.health;
+                        playerDao.hunger = snapshot.hunger;
+                        playerDao.maxHealth = snapshot.maxHealth;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case GAMEMODE:
+                    if (snapshot.gameMode != playerDao.gameMode) {
+                        playerDao.gameMode = snapshot.gameMode;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case INVENTORY:
+                    final List<String> enderInventory = encodeItems(snapshot.enderItems);
+                    final List<String> inventory = encodeItems(snapshot.items);
+                    final List<String> equipment = encodeItems(snapshot.equipment);
+                    if (!same(enderInventory, playerDao.enderInventory)
+                            || !same(inventory, playerDao.inventory)
+                            || !same(equipment, playerDao.equipment)) {
+                        playerDao.enderInventory = enderInventory;
+                        playerDao.inventory = inventory;
+                        playerDao.equipment = equipment;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case LOCATIONS:
+                    if (!same(snapshot.homeLocation, playerDao.homeLocation)
+                            || !same(snapshot.spawnLocation, playerDao.spawnLocation)
+                            || !same(snapshot.location, playerDao.location)) {
+                        playerDao.homeLocation = snapshot.homeLocation;
+                        playerDao.spawnLocation = snapshot.spawnLocation;
+                        playerDao.location = snapshot.location;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case PREFIX:
+                    if (!same(snapshot.prefix, playerDao.prefix)) {
+                        playerDao.prefix = snapshot.prefix;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                case STATISTICS:
+                    final String statistics = STATISTICS_CODEC.encode(snapshot.statistics);
+                    if (!same(statistics, playerDao.statistics)) {
+                        playerDao.statistics = statistics;
+                        playerDao.markDirty(save);
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException("The specified save is not supported: " + save);
+            }
+        }
     }
 
     @Override
     public boolean loadPlayerState(final Player player, final String state, final SaveState[] saves)
             throws DatabaseReadException {
-        Map<String, PlayerDao> playerStateMap = states.get(player.getUUIDString());
-        if (playerStateMap == null) {
-            playerStateMap = new HashMap<String, PlayerDao>();
-            states.put(player.getUUIDString(), playerStateMap);
-        }
-        PlayerDao playerDao = playerStateMap.get(state);
-        if (playerDao == null) {
-            playerDao = PlayerDao.getPlayerDao(player, state);
+        return loadPlayerState(player, state, saves, false);
+    }
+
+    /**
+     * Load the specified saves for the named state onto the given Player as it enters a world. The
+     * game mode, conditions, prefix and locations are applied at once, but the inventories,
+     * statistics and achievements may be applied over the next ticks to keep each tick within the
+     * tick budget. Until the inventory has been applied, {@link #isRestoringInventory(Player)} is
+     * true.
+     *
+     * @param player The Player to load the state onto.
+     * @param state  The name of the state to load.
+     * @param saves  The SaveStates to load.
+     * @return True if the load succeeded, false otherwise.
+     * @throws DatabaseReadException If there is an error loading from the database.
+     */
+    public boolean loadPlayerStateOverTicks(final Player player, final String state,
+            final SaveState[] saves) throws DatabaseReadException {
+        return loadPlayerState(player, state, saves, true);
+    }
+
+    private boolean loadPlayerState(final Player player, final String state, final SaveState[] saves,
+                                    final boolean spread) throws DatabaseReadException {
+        final PlayerSnapshot kept = parked.get(player.getUUIDString() + '\n' + state);
+        if (kept != null && kept.missing(saves).length == 0) {
+            // Back to a state left moments ago, swap it in from memory
+            restores.restore(player, kept, saves, spread);
+            metrics.recordSwappedLoad();
+
+            PlayerStatePlugin.LOG.info("Loaded " + player.getDisplayName() + " at state " + state
+                    + " from memory");
+            return true;
         }
-        final boolean success = loadPlayerState(player, state, saves, playerDao);
+
+        final PlayerDao playerDao = getPlayerDao(player, state, saves);
+        final boolean hasCachedStates = cache.containsPlayer(player.getUUIDString());
+        final boolean success = loadPlayerState(player, state, saves, playerDao, spread);
 
         PlayerStatePlugin.LOG.info("Loaded " + player.getDisplayName() + " at state " + state + ": "
                 + success);
 
-        if (!success && (!playerStateMap.isEmpty() || !PlayerDao.isNewPlayer(player))) {
+        if (!success && (hasCachedStates || !isNewPlayer(player))) {
             clearPlayerState(player, saves);
         }
 
@@ -163,17 +843,98 @@ public class PlayerStateManager implements IPlayerStateManager {
     }
 
     @Override
-    public Location getPlayerReturnLocation(final Player player, final String state)
-            throws DatabaseReadException {
-        Map<String, PlayerDao> playerStateMap = states.get(player.getUUIDString());
-        if (playerStateMap == null) {
-            playerStateMap = new HashMap<String, PlayerDao>();
-            states.put(player.getUUIDString(), playerStateMap);
+    public Future<Boolean> loadPlayerStateAsync(final Player player, final String state,
+            final SaveState[] saves, final PlayerStateCallback<Boolean> callback) {
+        final SaveState[] sections = saves.clone();
+        return submitRead(new AsyncRead<Boolean>(callback) {
+            private boolean clear;
+
+            @Override
+            protected void read() throws DatabaseReadException {
+                final PlayerDao playerDao = getPlayerDao(player, state, sections);
+                if (playerDao != null) {
+                    decodeMissing(playerDao, cache.getDecoded(playerDao), sections);
+                } else {
+                    clear = cache.containsPlayer(player.getUUIDString()) || !isNewPlayer(player);
+                }
+            }
+
+            @Override
+            protected Boolean finish() throws DatabaseReadException {
+                boolean success = false;
+                if (player.isOnline()) {
+                    // Usually cached and decoded by now, and includes any save made meanwhile
+                    success = loadPlayerState(player, state, sections,
+                            getPlayerDao(player, state, sections), false);
+
+                    PlayerStatePlugin.LOG.info("Loaded " + player.getDisplayName() + " at state "
+                            + state + ": " + success);
+
+                    if (!success && clear) {
+                        clearPlayerState(player, sections);
+                    }
+                }
+                return success;
+            }
+        });
+    }
+
+    @Override
+    public Future<Location> getPlayerReturnLocationAsync(final Player player, final String state,
+            final PlayerStateCallback<Location> callback) {
+        return submitRead(new AsyncRead<Location>(callback) {
+            @Override
+            protected void read() throws DatabaseReadException {
+                getPlayerDao(player, state, LOCATIONS_ONLY);
+            }
+
+            @Override
+            protected Location finish() throws DatabaseReadException {
+                // Locations resolve their World, which is only safe on the server Thread
+                return getPlayerReturnLocation(player, state);
+            }
+        });
+    }
+
+    @Override
+    public void savePlayerStates(final Collection<? extends Player> players, final String state,
+            final SaveState[] saves) {
+        for (final Player player : players) {
+            save(player, state, saves);
+        }
+
+        PlayerStatePlugin.LOG.info("Saved " + players.size() + " players at state " + state);
+    }
+
+    @Override
+    public Future<Map<String, Boolean>> loadPlayerStatesAsync(
+            final Collection<? extends Player> players, final String state,
+            final SaveState[] saves, final PlayerStateCallback<Map<String, Boolean>> callback) {
+        if (players.isEmpty()) {
+            throw new IllegalArgumentException("No players to load");
+        }
+        return submitRead(new BulkLoad(players, state, saves, callback));
+    }
+
+    private <T> Future<T> submitRead(final AsyncRead<T> read) {
+        final ExecutorService executor = ioExecutor;
+        if (executor == null || taskOwner == null) {
+            throw new IllegalStateException("PlayerState is not enabled");
         }
-        PlayerDao playerDao = playerStateMap.get(state);
-        if (playerDao == null) {
-            playerDao = PlayerDao.getPlayerDao(player, state);
+        try {
+            executor.execute(read);
+        } catch (final RejectedExecutionException e) {
+            // Shutting down, report it on the server Thread like any other failure
+            read.fail(e);
         }
+        return read.result;
+    }
+
+    @Override
+    public Location getPlayerReturnLocation(final Player player, final String state)
+            throws DatabaseReadException {
+        // Only reads the row of the state, not its inventories or statistics
+        final PlayerDao playerDao = getPlayerDao(player, state, LOCATIONS_ONLY);
 
         Location loc = null;
         if (playerDao != null) {
@@ -182,67 +943,268 @@ public class PlayerStateManager implements IPlayerStateManager {
         return loc;
     }
 
+    /**
+     * Get a state, from the cache if possible, with the sections that are about to be used loaded.
+     */
+    private PlayerDao getPlayerDao(final Player player, final String state,
+                                   final SaveState[] saves) throws DatabaseReadException {
+        final String uuid = player.getUUIDString();
+        settle(uuid + '\n' + state);
+        awaitEncode(uuid, state);
+        PlayerDao playerDao = cache.get(uuid, state);
+        if (playerDao == null && !cache.isMissing(uuid, state) && awaitPrefetch(uuid)) {
+            playerDao = cache.peek(uuid, state);
+        }
+        if (playerDao == null && !cache.isMissing(uuid, state)) {
+            playerDao = PlayerDao.getPlayerDao(uuid, state, saves);
+            if (playerDao != null) {
+                cache.put(playerDao);
+                knownPlayers.add(uuid);
+            } else {
+                cache.putMissing(uuid, state);
+            }
+        } else if (playerDao != null) {
+            // A state cached by a smaller load may not have read its large sections yet
+            if (playerDao.loadSections(saves)) {
+                cache.reweigh(playerDao);
+            }
+        }
+        return playerDao;
+    }
+
+    private boolean isNewPlayer(final Player player) throws DatabaseReadException {
+        final String uuid = player.getUUIDString();
+        final boolean newPlayer;
+        if (knownPlayers.contains(uuid)) {
+            newPlayer = false;
+            metrics.recordNewPlayerCheck(false);
+        } else if (cache.isComplete(uuid) || awaitPrefetch(uuid)) {
+            // Every row of the player was loaded and none of them were found
+            newPlayer = !knownPlayers.contains(uuid);
+            metrics.recordNewPlayerCheck(false);
+        } else {
+            newPlayer = PlayerDao.isNewPlayer(player);
+            if (!newPlayer) {
+                knownPlayers.add(uuid);
+            }
+            metrics.recordNewPlayerCheck(true);
+        }
+        return newPlayer;
+    }
+
+    /**
+     * Wait for a save of the state that is still being encoded, so a load sees the latest save.
+     */
+    private void awaitEncode(final String uuid, final String state) {
+        final Future<?> encode = encodes.get(uuid + '\n' + state);
+        if (encode != null) {
+            metrics.recordEncodeWait();
+            try {
+                encode.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                // The encode Thread has logged the error
+            }
+        }
+    }
+
+    private boolean awaitPrefetch(final String uuid) {
+        boolean prefetched = false;
+        final Future<?> prefetch = prefetches.get(uuid);
+        if (prefetch != null) {
+            try {
+                prefetch.get(PREFETCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                prefetched = true;
+                metrics.recordPrefetchWait(false);
+            } catch (final TimeoutException e) {
+                metrics.recordPrefetchWait(true);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final CancellationException e) {
+                // Fall back to reading the state directly
+            } catch (final ExecutionException e) {
+                // Fall back to reading the state directly
+            }
+        }
+        return prefetched;
+    }
+
     private boolean loadPlayerState(final Player player, final String state, final SaveState[] saves,
-                                    final PlayerDao playerDao) {
+                                    final PlayerDao playerDao, final boolean spread) {
         boolean loaded = false;
         if (playerDao != null) {
-            // player.setAge(playerDao.age);
-            // player.setFireTicks(fire);
-            // player.setInvulnerabilityTicks(invunerable);
-            // player.setLevel(level);
-            // player.teleportTo(Location.fromString(playerDao.location));
-
-            for (final SaveState save : saves) {
-                switch (save) {
-                    case ACHIEVEMENTS:
-                        restoreAchievements(playerDao.achievements, player);
-                        break;
-                    case CONDITIONS:
-                        player.removeAllPotionEffects();
-                        applyPotionEffects(playerDao.effects, player);
-                        player.setExhaustion(playerDao.exhaustion);
-                        player.setExperience(playerDao.experience);
-                        player.setHealth(playerDao.health);
-                        player.setHunger(playerDao.hunger);
-                        player.setMaxHealth(playerDao.maxHealth);
-                        break;
-                    case GAMEMODE:
-                        player.setModeId(playerDao.gameMode);
-                        break;
-                    case INVENTORY:
-                        restoreInventory(playerDao.enderInventory, player.getEnderChestInventory());
-                        restoreInventory(playerDao.inventory, player.getInventory());
-                        restoreEquipment(playerDao.equipment, player.getInventory());
-                        break;
-                    case LOCATIONS:
-                        player.setHome(Location.fromString(playerDao.homeLocation));
-                        player.setSpawnPosition(Location.fromString(playerDao.spawnLocation));
-                        break;
-                    case PREFIX:
-                        player.setPrefix(playerDao.prefix);
-                        break;
-                    case STATISTICS:
-                        restoreStatistics(playerDao.statistics, player);
-                        break;
-                    default:
-                        throw new UnsupportedOperationException("The specified save is not supported: " + save);
-                }
+            final long start = System.nanoTime();
+            PlayerSnapshot decoded = cache.getDecoded(playerDao);
+            final boolean predecoded = decoded != null && decoded.missing(saves).length == 0;
+            if (!predecoded) {
+                // Loaded from the database on this Thread, or recovered from the journal
+                decoded = decodeMissing(playerDao, decoded, saves);
             }
+            // When spread, applied as far as the tick budget allows, the rest over the next ticks
+            restores.restore(player, decoded, saves, spread);
+            metrics.recordLoad(predecoded, System.nanoTime() - start);
             loaded = true;
         }
         return loaded;
     }
 
+    /**
+     * Decode the sections of a stored state that its cached decoded form does not cover yet, and
+     * cache the result. Only what is applied is decoded, a small load need not parse the
+     * inventories. Safe to call from any Thread.
+     *
+     * @param playerDao The PlayerDao to decode.
+     * @param cached    The cached decoded form of the PlayerDao, or null.
+     * @param saves     The sections to cover.
+     * @return The decoded state.
+     */
+    private PlayerSnapshot decodeMissing(final PlayerDao playerDao, final PlayerSnapshot cached,
+            final SaveState[] saves) {
+        PlayerSnapshot decoded = cached;
+        final SaveState[] missing = cached != null ? cached.missing(saves) : saves;
+        if (missing.length > 0) {
+            final PlayerSnapshot part = decode(playerDao, missing);
+            decoded = cached != null ? cached.merge(part) : part;
+            cache.putDecoded(playerDao, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Decode every loaded section of a stored state into the form it is applied in. Safe to call
+     * from any Thread.
+     *
+     * @param playerDao The PlayerDao to decode.
+     * @return The decoded state.
+     */
+    private PlayerSnapshot decode(final PlayerDao playerDao) {
+        final int loaded = playerDao.getLoadedSections();
+        final List<SaveState> saves = new ArrayList<SaveState>();
+        for (final SaveState save : SaveState.values()) {
+            if ((loaded & 1 << save.ordinal()) != 0) {
+                saves.add(save);
+            }
+        }
+        return decode(playerDao, saves.toArray(new SaveState[saves.size()]));
+    }
+
+    /**
+     * Decode some sections of a stored state into the form they are applied in. Safe to call from
+     * any Thread.
+     *
+     * @param playerDao The PlayerDao to decode.
+     * @param saves     The sections to decode.
+     * @return The decoded sections.
+     */
+    private PlayerSnapshot decode(final PlayerDao playerDao, final SaveState[] saves) {
+        if (!playerDao.isLoaded(saves)) {
+            // Decoding a section that was never read would apply it as empty
+            throw new IllegalStateException("State " + playerDao.state + " of " + playerDao.uuid
+                    + " is not loaded");
+        }
+        final PlayerSnapshot decoded = new PlayerSnapshot(playerDao.uuid, playerDao.state, saves);
+        for (final SaveState save : saves) {
+            switch (save) {
+                case ACHIEVEMENTS:
+                    decoded.achievements = ACHIEVEMENTS_CODEC.decode(playerDao.achievements);
+                    break;
+                case CONDITIONS:
+                    decoded.effects = parsePotionEffects(playerDao.effects);
+                    decoded.exhaustion = playerDao.exhaustion;
+                    decoded.experience = playerDao.experience;
+                    decoded.health = playerDao.health;
+                    decoded.hunger = playerDao.hunger;
+                    decoded.maxHealth = playerDao.maxHealth;
+                    break;
+                case GAMEMODE:
+                    decoded.gameMode = playerDao.gameMode;
+                    break;
+                case INVENTORY:
+                    decoded.enderItems = decodeItems(playerDao.enderInventory);
+                    decoded.items = decodeItems(playerDao.inventory);
+                    decoded.equipment = decodeItems(playerDao.equipment);
+                    break;
+                case LOCATIONS:
+                    decoded.homeLocation = playerDao.homeLocation;
+                    decoded.spawnLocation = playerDao.spawnLocation;
+                    decoded.location = playerDao.location;
+                    break;
+                case PREFIX:
+                    decoded.prefix = playerDao.prefix;
+                    break;
+                case STATISTICS:
+                    decoded.statistics = STATISTICS_CODEC.decode(playerDao.statistics);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("The specified save is not supported: " + save);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Apply one section of a decoded state to a player. Runs on the server Thread, so it does no
+     * parsing.
+     *
+     * @param decoded The decoded state.
+     * @param save    The section to apply.
+     * @param player  The Player.
+     */
+    private void applySection(final PlayerSnapshot decoded, final SaveState save,
+                              final Player player) {
+        // player.setAge(playerDao.age);
+        // player.setFireTicks(fire);
+        // player.setInvulnerabilityTicks(invunerable);
+        // player.setLevel(level);
+        // player.teleportTo(Location.fromString(playerDao.location));
+
+        switch (save) {
+            case ACHIEVEMENTS:
+                ACHIEVEMENTS_CODEC.restore(decoded.achievements, player);
+                break;
+            case CONDITIONS:
+                player.removeAllPotionEffects();
+                applyPotionEffects(decoded.effects, player);
+                player.setExhaustion(decoded.exhaustion);
+                player.setExperience(decoded.experience);
+                player.setHealth(decoded.health);
+                player.setHunger(decoded.hunger);
+                player.setMaxHealth(decoded.maxHealth);
+                break;
+            case GAMEMODE:
+                player.setModeId(decoded.gameMode);
+                break;
+            case INVENTORY:
+                restoreInventory(decoded.enderItems, player.getEnderChestInventory());
+                restoreInventory(decoded.items, player.getInventory());
+                restoreEquipment(decoded.equipment, player.getInventory());
+                break;
+            case LOCATIONS:
+                player.setHome(Location.fromString(decoded.homeLocation));
+                player.setSpawnPosition(Location.fromString(decoded.spawnLocation));
+                break;
+            case PREFIX:
+                player.setPrefix(decoded.prefix);
+                break;
+            case STATISTICS:
+                STATISTICS_CODEC.restore(decoded.statistics, player);
+                break;
+            default:
+                throw new UnsupportedOperationException("The specified save is not supported: "
+                        + save);
+        }
+    }
+
     private void clearPlayerState(final Player player, final SaveState[] saves)
             throws DatabaseReadException {
+        restores.complete(player.getUUIDString());
         // player.setAge(0);
 
         for (final SaveState save : saves) {
             switch (save) {
                 case ACHIEVEMENTS:
-                    for (final Achievements achievements : Achievements.values()) {
-                        player.setStat(achievements.getInstance(), 0);
-                    }
+                    ACHIEVEMENTS_CODEC.clear(player);
                     break;
                 case CONDITIONS:
                     player.removeAllPotionEffects();
@@ -273,9 +1235,7 @@ public class PlayerStateManager implements IPlayerStateManager {
                     player.setPrefix(null);
                     break;
                 case STATISTICS:
-                    for (final Statistics statistics : Statistics.values()) {
-                        player.setStat(statistics.getInstance(), 0);
-                    }
+                    STATISTICS_CODEC.clear(player);
                     break;
                 default:
                     throw new UnsupportedOperationException("The specified clear is not supported: " + save);
@@ -285,152 +1245,861 @@ public class PlayerStateManager implements IPlayerStateManager {
         PlayerStatePlugin.LOG.info("Cleared " + player.getDisplayName() + " state");
     }
 
-    private List<String> serializePotionEffects(final List<PotionEffect> effects) {
-        final List<String> list = new ArrayList<String>(effects.size());
-        for (final PotionEffect effect : effects) {
-            list.add(String.valueOf(effect.getPotionID()) + ';' + effect.getDuration() + ';' + effect.getAmplifier() + ';' + effect.isAmbient());
+    private static int[][] capturePotionEffects(final List<PotionEffect> effects) {
+        final int[][] captured = new int[effects.size()][];
+        for (int i = 0; i < captured.length; i++) {
+            final PotionEffect effect = effects.get(i);
+            captured[i] = new int[]{effect.getPotionID(), effect.getDuration(),
+                    effect.getAmplifier(), effect.isAmbient() ? 1 : 0};
+        }
+        return captured;
+    }
+
+    private static List<String> serializePotionEffects(final int[][] effects) {
+        final List<String> list = new ArrayList<String>(effects.length);
+        for (final int[] effect : effects) {
+            list.add(String.valueOf(effect[0]) + ';' + effect[1] + ';' + effect[2] + ';'
+                    + (effect[3] != 0));
         }
         return list;
     }
 
-    private void applyPotionEffects(final List<String> list, final Player player) {
-        for (final String s : list) {
-            final StringTokenizer st = new StringTokenizer(s, ";");
+    private static int[][] parsePotionEffects(final List<String> list) {
+        final int size = list == null ? 0 : list.size();
+        final int[][] effects = new int[size][];
+        for (int i = 0; i < size; i++) {
+            final StringTokenizer st = new StringTokenizer(list.get(i), ";");
             final int id = Integer.parseInt(st.nextToken());
             final int duration = Integer.parseInt(st.nextToken());
             final int amplifier = Integer.parseInt(st.nextToken());
             final boolean ambient = Boolean.parseBoolean(st.nextToken());
-            player.addPotionEffect(POTION_FACTORY.newPotionEffect(id, duration, amplifier, ambient));
+            effects[i] = new int[]{id, duration, amplifier, ambient ? 1 : 0};
         }
+        return effects;
     }
 
-    private List<String> serializeInventory(final Inventory inventory) {
-        final List<String> list = new ArrayList<String>();
+    private void applyPotionEffects(final int[][] effects, final Player player) {
+        for (final int[] effect : effects) {
+            player.addPotionEffect(POTION_FACTORY.newPotionEffect(effect[0], effect[1], effect[2],
+                    effect[3] != 0));
+        }
+    }
+
+    private List<CompoundTag> captureInventory(final Inventory inventory) {
+        final List<CompoundTag> tags = new ArrayList<CompoundTag>();
         final Item[] contents = inventory.getContents();
         for (int i = 0; i < contents.length; i++) {
             final Item item = contents[i];
             if (item != null) {
-                final CompoundTag tag = NBT_FACTORY.newCompoundTag(null);
-                item.writeToTag(tag);
-                tag.put("slot", i);
-                list.add(Canary.jsonNBT().baseTagToJSON(tag));
+                final CompoundTag tag = toTag(item);
+                tag.put(ItemTags.SLOT, i);
+                tags.add(tag);
             }
         }
-        return list;
+        return tags;
     }
 
-    private void restoreInventory(final List<String> list, final Inventory inventory) {
-        inventory.clearContents();
-        for (final String s : list) {
-            final CompoundTag tag = (CompoundTag) Canary.jsonNBT().jsonToNBT(s);
-            final Item item = ITEM_FACTORY.newItem(ItemType.Tnt);
-            item.readFromTag(tag);
-            final int slot = tag.getInt("slot");
-            item.setSlot(slot);
-            inventory.setSlot(item);
+    /**
+     * Restore stored items to an inventory, only touching the slots whose contents differ, since
+     * every change is sent to the client.
+     */
+    private void restoreInventory(final List<CompoundTag> tags, final Inventory inventory) {
+        final Item[] contents = inventory.getContents();
+        final CompoundTag[] stored = new CompoundTag[contents.length];
+        for (final CompoundTag tag : tags) {
+            final int slot = tag.getInt(ItemTags.SLOT);
+            if (slot >= 0 && slot < stored.length) {
+                stored[slot] = tag;
+            }
         }
+        int changed = 0;
+        for (int slot = 0; slot < contents.length; slot++) {
+            if (!ItemTags.sameItem(stored[slot], writeTag(contents[slot]))) {
+                final Item item = fromTag(stored[slot]);
+                if (item != null) {
+                    item.setSlot(slot);
+                }
+                inventory.setSlot(slot, item);
+                changed++;
+            }
+        }
+        metrics.recordRestore(changed, contents.length - changed);
     }
 
-    private List<String> serializeEquipment(final PlayerInventory inventory) {
-        final List<String> list = new ArrayList<String>();
-        list.add(jsonify(inventory.getBootsSlot()));
-        list.add(jsonify(inventory.getChestplateSlot()));
-        list.add(jsonify(inventory.getHelmetSlot()));
-        list.add(jsonify(inventory.getLeggingsSlot()));
-        return list;
+    private List<CompoundTag> captureEquipment(final PlayerInventory inventory) {
+        final List<CompoundTag> tags = new ArrayList<CompoundTag>(4);
+        tags.add(toTag(inventory.getBootsSlot()));
+        tags.add(toTag(inventory.getChestplateSlot()));
+        tags.add(toTag(inventory.getHelmetSlot()));
+        tags.add(toTag(inventory.getLeggingsSlot()));
+        return tags;
     }
 
-    private void restoreEquipment(final List<String> list, final PlayerInventory inventory) {
-        assert list.size() == 4;
-        inventory.setBootsSlot(dejsonify(list.get(0)));
-        inventory.setChestPlateSlot(dejsonify(list.get(1)));
-        inventory.setHelmetSlot(dejsonify(list.get(2)));
-        inventory.setLeggingsSlot(dejsonify(list.get(3)));
+    private void restoreEquipment(final List<CompoundTag> tags, final PlayerInventory inventory) {
+        assert tags.isEmpty() || tags.size() == 4;
+        // Equipment that was never saved decodes to no tags, which clears the slots
+        final CompoundTag[] slots = tags.toArray(new CompoundTag[4]);
+        int changed = 0;
+        if (!ItemTags.sameItem(slots[0], writeTag(inventory.getBootsSlot()))) {
+            inventory.setBootsSlot(fromTag(slots[0]));
+            changed++;
+        }
+        if (!ItemTags.sameItem(slots[1], writeTag(inventory.getChestplateSlot()))) {
+            inventory.setChestPlateSlot(fromTag(slots[1]));
+            changed++;
+        }
+        if (!ItemTags.sameItem(slots[2], writeTag(inventory.getHelmetSlot()))) {
+            inventory.setHelmetSlot(fromTag(slots[2]));
+            changed++;
+        }
+        if (!ItemTags.sameItem(slots[3], writeTag(inventory.getLeggingsSlot()))) {
+            inventory.setLeggingsSlot(fromTag(slots[3]));
+            changed++;
+        }
+        metrics.recordRestore(changed, slots.length - changed);
+    }
+
+    private List<String> encodeItems(final List<CompoundTag> tags) {
+        final long start = System.nanoTime();
+        final List<String> data = itemCodec.encode(tags);
+        metrics.recordEncode(length(data), System.nanoTime() - start);
+        return data;
     }
 
-    private String serializeAchievements(final Player player) {
-        final StringBuilder sb = new StringBuilder();
-        for (final Achievements achievements : Achievements.values()) {
-            sb.append(achievements.getNativeName());
-            sb.append("=");
-            sb.append(player.getStat(achievements.getInstance()));
-            sb.append(";");
+    private List<CompoundTag> decodeItems(final List<String> data) {
+        if (data == null) {
+            // The section was never saved
+            return Collections.emptyList();
         }
-        return sb.toString();
+        final long start = System.nanoTime();
+        final List<CompoundTag> tags = ItemCodec.forData(data).decode(data);
+        metrics.recordDecode(System.nanoTime() - start);
+        return tags;
     }
 
-    private String serializeStatistics(final Player player) {
-        final StringBuilder sb = new StringBuilder();
-        for (final Statistics statistics : Statistics.values()) {
-            sb.append(statistics.getNativeName());
-            sb.append("=");
-            sb.append(player.getStat(statistics.getInstance()));
-            sb.append(";");
+    private List<String> transcodeItems(final List<String> data) {
+        List<String> transcoded = null;
+        if (data != null) {
+            final ItemCodec codec = ItemCodec.forData(data);
+            if (codec != itemCodec) {
+                transcoded = itemCodec.encode(codec.decode(data));
+            }
         }
-        return sb.toString();
+        return transcoded;
     }
 
-    private void restoreAchievements(final String achievements, final Player player) {
-        final StringTokenizer st = new StringTokenizer(achievements, ";");
-        while (st.hasMoreTokens()) {
-            final String t = st.nextToken();
-            final int i = t.indexOf("=");
+    private static boolean same(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
 
-            final String achievementName = t.substring(0, i);
-            final Achievement a = STATS_FACTORY.getAchievement(achievementName);
-            player.setStat(a, Integer.parseInt(t.substring(i + 1)));
+    private static long length(final List<String> data) {
+        long length = 0;
+        for (final String s : data) {
+            if (s != null) {
+                length += s.length();
+            }
         }
+        return length;
     }
 
-    private void restoreStatistics(final String statistics, final Player player) {
-        final StringTokenizer st = new StringTokenizer(statistics, ";");
-        while (st.hasMoreTokens()) {
-            final String t = st.nextToken();
-            final int i = t.indexOf("=");
-
-            final String statName = t.substring(0, i);
-            final Stat s = STATS_FACTORY.getStat(statName);
-            player.setStat(s, Integer.parseInt(t.substring(i + 1)));
+    private CompoundTag toTag(final Item item) {
+        final CompoundTag tag = writeTag(item);
+        // The item shares its own tag with the written one, copy it before another Thread reads
+        if (tag != null && tag.containsKey("tag")) {
+            tag.put("tag", tag.getCompoundTag("tag").copy());
         }
+        return tag;
     }
 
-    private String jsonify(final Item item) {
+    private CompoundTag writeTag(final Item item) {
         if (item != null) {
             final CompoundTag tag = NBT_FACTORY.newCompoundTag(null);
             item.writeToTag(tag);
-            return Canary.jsonNBT().baseTagToJSON(tag);
+            return tag;
         } else {
             return null;
         }
     }
 
-    private Item dejsonify(final String string) {
-        if (string != null && !string.equals("null")) {
-            final CompoundTag tag = (CompoundTag) Canary.jsonNBT().jsonToNBT(string);
+    private Item fromTag(final CompoundTag tag) {
+        if (tag != null) {
             final Item item = ITEM_FACTORY.newItem(ItemType.Tnt);
-            item.readFromTag(tag);
+            // The decoded tag is cached and the item keeps parts of what it reads, give it a copy
+            item.readFromTag(tag.copy());
             return item;
         } else {
             return null;
         }
     }
 
-    private class SavePlayerDaoTask implements Runnable {
+    private void flush() {
+        flush(NO_DEADLINE);
+    }
+
+    /**
+     * Write everything queued, striped over the flush lanes.
+     *
+     * @param deadline The System.nanoTime() by which to stop writing, or NO_DEADLINE. Rows not
+     *                 attempted by then are queued again.
+     * @return The number of rows written, the number that failed and the number left unwritten
+     * because of the deadline.
+     */
+    private int[] flush(final long deadline) {
+        final int[] totals = new int[3];
+        // Only flushers and the migration contend for this lock, never the server Thread
+        try {
+            if (deadline == NO_DEADLINE) {
+                flushLock.lock();
+            } else if (!flushLock.tryLock(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS)) {
+                return totals;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return totals;
+        }
+        try {
+            final Collection<PlayerDao> drained = persistQueue.drain();
+            if (!drained.isEmpty()) {
+                final long start = System.nanoTime();
+                final ExecutorService[] lanes = flushLanes;
+                final int laneCount = lanes == null ? 1 : lanes.length;
+
+                // Stripe by player so the states of a player are always written in order
+                final List<List<PlayerDao>> stripes = new ArrayList<List<PlayerDao>>(laneCount);
+                for (int i = 0; i < laneCount; i++) {
+                    stripes.add(new ArrayList<PlayerDao>());
+                }
+                for (final PlayerDao playerDao : drained) {
+                    stripes.get((playerDao.uuid.hashCode() & Integer.MAX_VALUE) % laneCount)
+                            .add(playerDao);
+                }
+
+                final List<Future<int[]>> results = new ArrayList<Future<int[]>>(laneCount);
+                final List<Integer> resultSizes = new ArrayList<Integer>(laneCount);
+                for (int i = 0; i < laneCount; i++) {
+                    final List<PlayerDao> stripe = stripes.get(i);
+                    if (!stripe.isEmpty()) {
+                        final FlushLaneTask laneTask = new FlushLaneTask(i, stripe, deadline);
+                        metrics.recordLaneDepth(i, stripe.size());
+                        if (lanes != null) {
+                            results.add(lanes[i].submit(laneTask));
+                        } else {
+                            final FutureTask<int[]> future = new FutureTask<int[]>(laneTask);
+                            future.run();
+                            results.add(future);
+                        }
+                        resultSizes.add(stripe.size());
+                    }
+                }
+
+                for (int i = 0; i < results.size(); i++) {
+                    try {
+                        final int[] counts;
+                        if (deadline == NO_DEADLINE) {
+                            counts = results.get(i).get();
+                        } else {
+                            counts = results.get(i).get(Math.max(0, deadline - System.nanoTime()),
+                                    TimeUnit.NANOSECONDS);
+                        }
+                        for (int j = 0; j < totals.length; j++) {
+                            totals[j] += counts[j];
+                        }
+                    } catch (final TimeoutException e) {
+                        // The lane is stuck on a slow write, its rows are still in flight
+                        totals[2] += resultSizes.get(i);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (final ExecutionException e) {
+                        PlayerStatePlugin.LOG.error("Error flushing player states", e.getCause());
+                    }
+                }
+                metrics.recordFlush(totals[0], totals[1], System.nanoTime() - start);
+                PlayerStatePlugin.LOG.debug("Flushed " + drained.size() + " player states on "
+                        + results.size() + " lanes in " + metrics.getFlushLastMillis() + "ms");
+                final PlayerStateJournal currentJournal = journal;
+                if (currentJournal != null && journalSaves) {
+                    currentJournal.rewrite(persistQueue);
+                }
+                cache.purgeUnloaded();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        return totals;
+    }
+
+    /**
+     * Write the changed PlayerDaos of one lane in batches.
+     *
+     * @param lane       The lane, for metrics.
+     * @param playerDaos The PlayerDaos striped onto the lane.
+     * @param deadline   The System.nanoTime() after which no more batches are started, or
+     *                   NO_DEADLINE.
+     * @return The number of rows written, the number that failed and the number queued again
+     * because of the deadline.
+     */
+    private int[] flushLane(final int lane, final List<PlayerDao> playerDaos, final long deadline) {
+        final int batchSize = maxBatchSize;
+        final List<PlayerDao> batch = new ArrayList<PlayerDao>(batchSize);
+        final List<Integer> batchSections = new ArrayList<Integer>(batchSize);
+        final int[] counts = new int[3];
+        for (final PlayerDao playerDao : playerDaos) {
+            final int dirtySections = playerDao.takeDirtySections();
+            if (dirtySections != 0) {
+                batch.add(playerDao);
+                batchSections.add(dirtySections);
+                if (batch.size() == batchSize) {
+                    flushLaneBatch(lane, batch, batchSections, deadline, counts);
+                }
+            } else {
+                metrics.recordUnchangedRow();
+                metrics.recordLaneDepth(lane, -1);
+                persistQueue.complete(playerDao);
+            }
+        }
+        if (!batch.isEmpty()) {
+            flushLaneBatch(lane, batch, batchSections, deadline, counts);
+        }
+        metrics.recordLaneRows(lane, counts[0]);
+        return counts;
+    }
+
+    private void flushLaneBatch(final int lane, final List<PlayerDao> batch,
+                                final List<Integer> sections, final long deadline,
+                                final int[] counts) {
+        if (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) {
+            for (int i = 0; i < batch.size(); i++) {
+                final PlayerDao playerDao = batch.get(i);
+                playerDao.markDirty(sections.get(i));
+                persistQueue.enqueue(playerDao);
+                persistQueue.complete(playerDao);
+            }
+            counts[2] += batch.size();
+        } else {
+            final int failed = writeBatch(batch, sections);
+            counts[0] += batch.size() - failed;
+            counts[1] += failed;
+        }
+        metrics.recordLaneDepth(lane, -batch.size());
+        batch.clear();
+        sections.clear();
+    }
+
+    /**
+     * Write a batch of changed PlayerDaos. Rows already in the database are written together; new
+     * rows, and every row of a batch that fails as a whole, are written one at a time so that only
+     * the rows that actually fail are queued again.
+     *
+     * @param batch    The PlayerDaos to write.
+     * @param sections The sections changed in each PlayerDao.
+     * @return The number of rows that failed and were queued again.
+     */
+    private int writeBatch(final List<PlayerDao> batch, final List<Integer> sections) {
+        final List<PlayerDao> stored = new ArrayList<PlayerDao>(batch.size());
+        final List<Integer> storedSections = new ArrayList<Integer>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).isStored()) {
+                stored.add(batch.get(i));
+                storedSections.add(sections.get(i));
+            }
+        }
+
+        boolean batched = false;
+        if (stored.size() > 1) {
+            try {
+                PlayerDao.updateAll(stored, storedSections);
+                batched = true;
+                metrics.recordBatch(stored.size());
+            } catch (final DatabaseReadException e) {
+                PlayerStatePlugin.LOG.warn("Error saving a batch of " + stored.size()
+                        + " player states, retrying them one at a time", e);
+            } catch (final DatabaseWriteException e) {
+                PlayerStatePlugin.LOG.warn("Error saving a batch of " + stored.size()
+                        + " player states, retrying them one at a time", e);
+            }
+        }
+
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            final PlayerDao playerDao = batch.get(i);
+            final int dirtySections = sections.get(i);
+            boolean success = true;
+            if (!batched || !playerDao.isStored()) {
+                try {
+                    playerDao.update(dirtySections);
+                } catch (final DatabaseReadException e) {
+                    success = false;
+                    PlayerStatePlugin.LOG.info("Error saving state " + playerDao.state + " for "
+                            + playerDao.uuid);
+                } catch (final DatabaseWriteException e) {
+                    success = false;
+                    PlayerStatePlugin.LOG.info("Error saving state " + playerDao.state + " for "
+                            + playerDao.uuid);
+                }
+            }
+            if (success) {
+                metrics.recordSectionsWritten(Integer.bitCount(dirtySections));
+            } else {
+                failed++;
+                // Queue again before completing so the player keeps a pending write throughout
+                playerDao.markDirty(dirtySections);
+                persistQueue.enqueue(playerDao);
+            }
+            persistQueue.complete(playerDao);
+        }
+        return failed;
+    }
+
+    private class EncodeTask extends FutureTask<Void> {
+        private final String key;
+
+        private EncodeTask(final PlayerSnapshot snapshot) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    encodeAndQueue(snapshot);
+                }
+            }, null);
+            key = snapshot.key();
+        }
+
+        @Override
+        protected void done() {
+            encodes.remove(key, this);
+        }
+    }
+
+    private class FlushLaneTask implements Callable<int[]> {
+        private final int lane;
+        private final List<PlayerDao> playerDaos;
+        private final long deadline;
+
+        private FlushLaneTask(final int lane, final List<PlayerDao> playerDaos,
+                              final long deadline) {
+            this.lane = lane;
+            this.playerDaos = playerDaos;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int[] call() {
+            return flushLane(lane, playerDaos, deadline);
+        }
+    }
+
+    /**
+     * Converts the stored states one player at a time. The rows of a player are read again, and
+     * converted and written while holding the flush lock, so no flush can write a newer state of
+     * the player in between. Players who are loaded or have writes pending at that point are left
+     * to their next save.
+     */
+    private class MigrateItemsTask implements Runnable {
         @Override
         public void run() {
-            synchronized (persistDaos) {
-                if (!persistDaos.isEmpty()) {
-                    for (final PlayerDao playerDao : persistDaos) {
+            try {
+                int migrated = 0;
+                int skipped = 0;
+                int failed = 0;
+                for (final String uuid : PlayerDao.getPlayerUuids()) {
+                    if (isLoaded(uuid)) {
+                        skipped++;
+                    } else {
                         try {
-                            playerDao.update();
+                            final int count = migratePlayer(uuid);
+                            if (count < 0) {
+                                skipped++;
+                            } else {
+                                migrated += count;
+                            }
+                        } catch (final DatabaseReadException e) {
+                            PlayerStatePlugin.LOG.warn("Error reading player states to migrate", e);
+                            failed++;
                         } catch (final DatabaseWriteException e) {
-                            PlayerStatePlugin.LOG.info("Error saving state " + playerDao.state + " for "
-                                    + playerDao.uuid);
+                            PlayerStatePlugin.LOG.warn("Error writing migrated player states", e);
+                            failed++;
+                        }
+                    }
+                }
+                PlayerStatePlugin.LOG.info("Migrated " + migrated + " player states to the "
+                        + itemFormat + " item format, skipped " + skipped + " loaded players, "
+                        + failed + " players failed");
+            } catch (final DatabaseReadException e) {
+                PlayerStatePlugin.LOG.warn("Error reading player states to migrate", e);
+            } finally {
+                migrating.set(false);
+            }
+        }
+
+        /**
+         * Convert the stored states of one player.
+         *
+         * @return The number of states converted, or -1 if the player was loaded meanwhile.
+         */
+        private int migratePlayer(final String uuid)
+                throws DatabaseReadException, DatabaseWriteException {
+            int migrated = 0;
+            flushLock.lock();
+            try {
+                if (isLoaded(uuid)) {
+                    return -1;
+                }
+                for (final PlayerDao playerDao : PlayerDao.getPlayerDaos(uuid)) {
+                    final List<String> enderInventory = transcodeItems(playerDao.enderInventory);
+                    final List<String> inventory = transcodeItems(playerDao.inventory);
+                    final List<String> equipment = transcodeItems(playerDao.equipment);
+                    // Rows still in the old layout are moved to the new one as well
+                    if (enderInventory != null || inventory != null || equipment != null
+                            || playerDao.isLegacyLayout()) {
+                        if (enderInventory != null) {
+                            playerDao.enderInventory = enderInventory;
+                        }
+                        if (inventory != null) {
+                            playerDao.inventory = inventory;
+                        }
+                        if (equipment != null) {
+                            playerDao.equipment = equipment;
+                        }
+                        playerDao.update(1 << SaveState.INVENTORY.ordinal());
+                        migrated++;
+                    }
+                }
+            } finally {
+                flushLock.unlock();
+            }
+            return migrated;
+        }
+
+        private boolean isLoaded(final String uuid) {
+            return cache.containsPlayer(uuid) || persistQueue.hasPending(uuid);
+        }
+    }
+
+    /**
+     * A read that runs on an IO Thread and finishes on the server Thread, where its result
+     * completes and its callback is called.
+     */
+    private abstract class AsyncRead<T> implements Runnable, Callable<T> {
+        final AsyncResult<T> result;
+        private volatile Throwable failure;
+
+        private AsyncRead(final PlayerStateCallback<T> callback) {
+            result = new AsyncResult<T>(this, callback);
+        }
+
+        /**
+         * Read and decode what {@link #finish()} needs. Runs on an IO Thread.
+         */
+        protected abstract void read() throws DatabaseReadException;
+
+        /**
+         * Produce the result. Runs on the server Thread.
+         */
+        protected abstract T finish() throws DatabaseReadException;
+
+        @Override
+        public void run() {
+            try {
+                read();
+            } catch (final DatabaseReadException e) {
+                failure = e;
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+            finishOnServerThread();
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            }
+            return finish();
+        }
+
+        private void fail(final Throwable cause) {
+            failure = cause;
+            finishOnServerThread();
+        }
+
+        /**
+         * Check whether {@link #read()} failed, in which case the result fails with that cause.
+         */
+        protected boolean hasFailed() {
+            return failure != null;
+        }
+
+        /**
+         * Runs on the server Thread once the read is done, and completes the result by calling
+         * {@link #finish()}. A read that finishes over several ticks calls
+         * {@link #finishOnServerThread()} again instead until it is ready to complete.
+         */
+        protected void onServerThread() {
+            result.run();
+        }
+
+        protected void finishOnServerThread() {
+            if (!result.isCancelled()) {
+                Canary.getServer().addSynchronousTask(new ServerTask(taskOwner, 0) {
+                    @Override
+                    public void run() {
+                        onServerThread();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Loads one state for many players. The rows that are not cached are read one player at a
+     * time, spread over the IO Threads, and decoded in parallel on the encode Threads. Then the
+     * players are loaded on the server Thread a few at a time, so that no tick spends more than
+     * the tick budget on them.
+     */
+    private class BulkLoad extends AsyncRead<Map<String, Boolean>> {
+        private final List<Player> players;
+        private final String state;
+        private final SaveState[] saves;
+        private final Set<String> clear;
+        private final Map<String, Boolean> results;
+        private int next;
+
+        private BulkLoad(final Collection<? extends Player> players, final String state,
+                final SaveState[] saves, final PlayerStateCallback<Map<String, Boolean>> callback) {
+            super(callback);
+            this.players = new ArrayList<Player>(players);
+            this.state = state;
+            this.saves = saves.clone();
+            clear = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            results = new HashMap<String, Boolean>();
+        }
+
+        @Override
+        protected void read() throws DatabaseReadException {
+            for (final Player player : players) {
+                final String uuid = player.getUUIDString();
+                settle(uuid + '\n' + state);
+                awaitEncode(uuid, state);
+            }
+
+            // Read on this Thread and on helpers taking players from the same queue. A helper
+            // that has not started by the time the queue is empty is cancelled rather than
+            // awaited, so a busy IO pool never holds this read up.
+            final Queue<Player> queue = new ConcurrentLinkedQueue<Player>(players);
+            final AtomicReference<DatabaseReadException> failure =
+                    new AtomicReference<DatabaseReadException>();
+            final Runnable reader = new Runnable() {
+                @Override
+                public void run() {
+                    Player player;
+                    while (failure.get() == null && (player = queue.poll()) != null) {
+                        try {
+                            readPlayer(player);
+                        } catch (final DatabaseReadException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            };
+            final List<FutureTask<Void>> helpers = new ArrayList<FutureTask<Void>>();
+            final ExecutorService executor = ioExecutor;
+            for (int i = 1; executor != null && i < Math.min(IO_THREADS, players.size()); i++) {
+                final FutureTask<Void> helper = new FutureTask<Void>(reader, null);
+                try {
+                    executor.execute(helper);
+                    helpers.add(helper);
+                } catch (final RejectedExecutionException e) {
+                    break;
+                }
+            }
+            reader.run();
+            for (final FutureTask<Void> helper : helpers) {
+                if (!helper.cancel(false)) {
+                    try {
+                        helper.get();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (final ExecutionException e) {
+                        PlayerStatePlugin.LOG.warn("Error reading state " + state, e.getCause());
+                    }
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            final List<Future<?>> decodes = new ArrayList<Future<?>>();
+            for (final Player player : players) {
+                final FutureTask<Void> decode = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        final PlayerDao playerDao = cache.peek(player.getUUIDString(), state);
+                        if (playerDao != null) {
+                            decodeMissing(playerDao, cache.getDecoded(playerDao), saves);
+                        }
+                    }
+                }, null);
+                final ExecutorService[] lanes = encodeLanes;
+                if (lanes != null) {
+                    try {
+                        lanes[(player.getUUIDString().hashCode() & 0x7fffffff) % lanes.length]
+                                .execute(decode);
+                    } catch (final RejectedExecutionException e) {
+                        decode.run();
+                    }
+                } else {
+                    decode.run();
+                }
+                decodes.add(decode);
+            }
+            for (final Future<?> decode : decodes) {
+                try {
+                    decode.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (final ExecutionException e) {
+                    // Decoded again on the server Thread, which reports the error
+                }
+            }
+
+        }
+
+        /**
+         * Read the state of one player unless it is cached, with the sections to be applied. A
+         * player without the state is checked for other states right away, so the check runs in
+         * parallel and at most once per player.
+         */
+        private void readPlayer(final Player player) throws DatabaseReadException {
+            final String uuid = player.getUUIDString();
+            PlayerDao playerDao = cache.peek(uuid, state);
+            if (playerDao == null && !cache.isMissing(uuid, state)) {
+                playerDao = PlayerDao.getPlayerDao(uuid, state, saves);
+                cache.putLoaded(state, Collections.singletonList(uuid),
+                        playerDao != null ? Collections.singletonList(playerDao)
+                                : Collections.<PlayerDao>emptyList());
+                if (playerDao != null) {
+                    knownPlayers.add(uuid);
+                }
+            }
+            if (playerDao != null) {
+                if (playerDao.loadSections(saves)) {
+                    cache.reweigh(playerDao);
+                }
+            } else if (cache.containsPlayer(uuid) || !isNewPlayer(player)) {
+                clear.add(uuid);
+            }
+        }
+
+        @Override
+        protected void onServerThread() {
+            if (hasFailed() || loadWithinBudget()) {
+                result.run();
+            } else {
+                finishOnServerThread();
+            }
+        }
+
+        private boolean loadWithinBudget() {
+            final long deadline = System.nanoTime() + tickBudgetNanos;
+            do {
+                final Player player = players.get(next++);
+                final String uuid = player.getUUIDString();
+                boolean success = false;
+                if (player.isOnline()) {
+                    try {
+                        // Includes any save made since the read
+                        success = loadPlayerState(player, state, saves,
+                                getPlayerDao(player, state, saves), false);
+                        if (!success && clear.contains(uuid)) {
+                            clearPlayerState(player, saves);
                         }
+                    } catch (final DatabaseReadException e) {
+                        PlayerStatePlugin.LOG.warn("Error loading state " + state + " of "
+                                + player.getDisplayName(), e);
                     }
-                    persistDaos.clear();
+                }
+                results.put(uuid, success);
+            } while (next < players.size() && System.nanoTime() < deadline);
+            return next == players.size();
+        }
+
+        @Override
+        protected Map<String, Boolean> finish() {
+            int loaded = 0;
+            for (final Boolean success : results.values()) {
+                if (success) {
+                    loaded++;
                 }
             }
+            PlayerStatePlugin.LOG.info("Loaded " + loaded + " of " + players.size()
+                    + " players at state " + state);
+            return results;
+        }
+    }
+
+    private static class AsyncResult<T> extends FutureTask<T> {
+        private final PlayerStateCallback<T> callback;
+
+        private AsyncResult(final Callable<T> finish, final PlayerStateCallback<T> callback) {
+            super(finish);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            // A cancelled result never reaches the server Thread, so neither does its callback
+            if (callback != null && !isCancelled()) {
+                try {
+                    callback.completed(get());
+                } catch (final ExecutionException e) {
+                    callback.failed(e.getCause());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private class PrefetchTask implements Runnable {
+        private final String uuid;
+
+        private PrefetchTask(final String uuid) {
+            this.uuid = uuid;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final long start = System.nanoTime();
+                final List<PlayerDao> playerDaos = PlayerDao.getPlayerDaos(uuid);
+                // Decode here so that loading a state on the server Thread only applies it
+                final Map<String, PlayerSnapshot> decoded = new HashMap<String, PlayerSnapshot>();
+                for (final PlayerDao playerDao : playerDaos) {
+                    try {
+                        decoded.put(playerDao.state, decode(playerDao));
+                    } catch (final RuntimeException e) {
+                        PlayerStatePlugin.LOG.warn("Error decoding state " + playerDao.state
+                                + " of " + uuid, e);
+                    }
+                }
+                cache.putAll(uuid, playerDaos, decoded);
+                if (!playerDaos.isEmpty()) {
+                    knownPlayers.add(uuid);
+                }
+                metrics.recordPrefetch(playerDaos.size(), System.nanoTime() - start);
+            } catch (final DatabaseReadException e) {
+                PlayerStatePlugin.LOG.warn("Error prefetching states for " + uuid, e);
+            } finally {
+                prefetches.remove(uuid);
+            }
+        }
+    }
+
+    private class SavePlayerDaoTask implements Runnable {
+        @Override
+        public void run() {
+            flush();
         }
     }
 }
@@ -0,0 +1,690 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the cost of player state persistence. All counters are safe to update from
+ * any Thread.
+ */
+public class PlayerStateMetrics {
+    private final AtomicLong enqueues = new AtomicLong();
+    private final AtomicLong enqueueNanos = new AtomicLong();
+    private final AtomicLong enqueueMaxNanos = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong flushMaxNanos = new AtomicLong();
+    private final AtomicLong flushLastNanos = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong sectionsWritten = new AtomicLong();
+    private final AtomicLong unchangedSaves = new AtomicLong();
+    private final AtomicLong unchangedRows = new AtomicLong();
+    private final AtomicLong supersededSaves = new AtomicLong();
+    private final AtomicLong sizeTriggers = new AtomicLong();
+    private final AtomicLong ageTriggers = new AtomicLong();
+    private final AtomicLong intervalTriggers = new AtomicLong();
+    private final AtomicLong backoffs = new AtomicLong();
+    private final AtomicLong backoffMillis = new AtomicLong();
+    private final AtomicLong scheduleIntervalMillis = new AtomicLong();
+    private final AtomicLong scheduleMaxAgeMillis = new AtomicLong();
+    private final AtomicLong scheduleThreshold = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedRows = new AtomicLong();
+
+    private volatile AtomicLongArray laneDepths = new AtomicLongArray(0);
+    private volatile AtomicLongArray laneRows = new AtomicLongArray(0);
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheNegativeHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheInvalidations = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final AtomicLong cacheUnloads = new AtomicLong();
+    private final AtomicLong cachePlayers = new AtomicLong();
+    private final AtomicLong cacheWeight = new AtomicLong();
+
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong prefetchNanos = new AtomicLong();
+    private final AtomicLong prefetchedRows = new AtomicLong();
+    private final AtomicLong prefetchWaits = new AtomicLong();
+    private final AtomicLong prefetchTimeouts = new AtomicLong();
+
+    private final AtomicLong encodes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+    private final AtomicLong saveMaxNanos = new AtomicLong();
+    private final AtomicLong saveEncodes = new AtomicLong();
+    private final AtomicLong saveEncodeNanos = new AtomicLong();
+    private final AtomicLong encodeWaits = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong loadMaxNanos = new AtomicLong();
+    private final AtomicLong loadsDecodedOnThread = new AtomicLong();
+
+    private final AtomicLong slotsRestored = new AtomicLong();
+    private final AtomicLong slotsUnchanged = new AtomicLong();
+    private final AtomicLong restoresDeferred = new AtomicLong();
+    private final AtomicLong restoreMaxTicks = new AtomicLong();
+
+    private final AtomicLong swappedLoads = new AtomicLong();
+    private final AtomicLong coalescedSaves = new AtomicLong();
+    private final AtomicLong settledSaves = new AtomicLong();
+
+    private final AtomicLong journalAppends = new AtomicLong();
+    private final AtomicLong journalNanos = new AtomicLong();
+    private final AtomicLong journalBytes = new AtomicLong();
+    private final AtomicLong journalErrors = new AtomicLong();
+    private final AtomicLong journalRecords = new AtomicLong();
+    private final AtomicLong journalRecovered = new AtomicLong();
+
+    private final AtomicLong shutdownWritten = new AtomicLong();
+    private final AtomicLong shutdownFailed = new AtomicLong();
+    private final AtomicLong shutdownSpilled = new AtomicLong();
+    private final AtomicLong shutdownMillis = new AtomicLong();
+
+    private final AtomicLong newPlayerChecks = new AtomicLong();
+    private final AtomicLong newPlayerQueries = new AtomicLong();
+
+    void recordEnqueue(final long nanos) {
+        enqueues.incrementAndGet();
+        enqueueNanos.addAndGet(nanos);
+        updateMax(enqueueMaxNanos, nanos);
+    }
+
+    void recordFlush(final int written, final int failed, final long nanos) {
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+        flushLastNanos.set(nanos);
+        updateMax(flushMaxNanos, nanos);
+        rowsWritten.addAndGet(written);
+        rowsFailed.addAndGet(failed);
+    }
+
+    void recordSchedule(final long intervalMillis, final long maxAgeMillis, final int threshold) {
+        scheduleIntervalMillis.set(intervalMillis);
+        scheduleMaxAgeMillis.set(maxAgeMillis);
+        scheduleThreshold.set(threshold);
+    }
+
+    void recordFlushTrigger(final String reason, final long backoff) {
+        if ("size".equals(reason)) {
+            sizeTriggers.incrementAndGet();
+        } else if ("age".equals(reason)) {
+            ageTriggers.incrementAndGet();
+        } else {
+            intervalTriggers.incrementAndGet();
+        }
+        if (backoff > 0) {
+            backoffs.incrementAndGet();
+        }
+        backoffMillis.set(backoff);
+    }
+
+    void recordSectionsWritten(final int sections) {
+        sectionsWritten.addAndGet(sections);
+    }
+
+    void recordBatch(final int rows) {
+        batches.incrementAndGet();
+        batchedRows.addAndGet(rows);
+    }
+
+    void setFlushLanes(final int lanes) {
+        laneDepths = new AtomicLongArray(lanes);
+        laneRows = new AtomicLongArray(lanes);
+    }
+
+    void recordLaneDepth(final int lane, final int delta) {
+        final AtomicLongArray depths = laneDepths;
+        if (lane < depths.length()) {
+            depths.addAndGet(lane, delta);
+        }
+    }
+
+    void recordLaneRows(final int lane, final int rows) {
+        final AtomicLongArray rowCounts = laneRows;
+        if (lane < rowCounts.length()) {
+            rowCounts.addAndGet(lane, rows);
+        }
+    }
+
+    void recordUnchangedSave() {
+        unchangedSaves.incrementAndGet();
+    }
+
+    void recordSupersededSave() {
+        supersededSaves.incrementAndGet();
+    }
+
+    void recordUnchangedRow() {
+        unchangedRows.incrementAndGet();
+    }
+
+    void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    void recordCacheNegativeHit() {
+        cacheNegativeHits.incrementAndGet();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    void recordCacheInvalidation() {
+        cacheInvalidations.incrementAndGet();
+    }
+
+    void recordCacheEviction() {
+        cacheEvictions.incrementAndGet();
+    }
+
+    void recordCacheUnload() {
+        cacheUnloads.incrementAndGet();
+    }
+
+    void recordCacheSize(final int players, final long weight) {
+        cachePlayers.set(players);
+        cacheWeight.set(weight);
+    }
+
+    void recordPrefetch(final int rows, final long nanos) {
+        prefetches.incrementAndGet();
+        prefetchNanos.addAndGet(nanos);
+        prefetchedRows.addAndGet(rows);
+    }
+
+    void recordPrefetchWait(final boolean timedOut) {
+        prefetchWaits.incrementAndGet();
+        if (timedOut) {
+            prefetchTimeouts.incrementAndGet();
+        }
+    }
+
+    void recordEncode(final long bytes, final long nanos) {
+        encodes.incrementAndGet();
+        encodeNanos.addAndGet(nanos);
+        encodedBytes.addAndGet(bytes);
+    }
+
+    void recordDecode(final long nanos) {
+        decodes.incrementAndGet();
+        decodeNanos.addAndGet(nanos);
+    }
+
+    void recordSave(final long nanos) {
+        saves.incrementAndGet();
+        saveNanos.addAndGet(nanos);
+        updateMax(saveMaxNanos, nanos);
+    }
+
+    void recordSaveEncode(final long nanos) {
+        saveEncodes.incrementAndGet();
+        saveEncodeNanos.addAndGet(nanos);
+    }
+
+    void recordEncodeWait() {
+        encodeWaits.incrementAndGet();
+    }
+
+    void recordLoad(final boolean predecoded, final long nanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+        updateMax(loadMaxNanos, nanos);
+        if (!predecoded) {
+            loadsDecodedOnThread.incrementAndGet();
+        }
+    }
+
+    void recordRestore(final int changed, final int unchanged) {
+        slotsRestored.addAndGet(changed);
+        slotsUnchanged.addAndGet(unchanged);
+    }
+
+    void recordDeferredRestore() {
+        restoresDeferred.incrementAndGet();
+    }
+
+    void recordRestoreTicks(final long ticks) {
+        updateMax(restoreMaxTicks, ticks);
+    }
+
+    void recordSwappedLoad() {
+        swappedLoads.incrementAndGet();
+    }
+
+    void recordCoalescedSave() {
+        coalescedSaves.incrementAndGet();
+    }
+
+    void recordSettledSave() {
+        settledSaves.incrementAndGet();
+    }
+
+    void recordJournalAppend(final long bytes, final long nanos) {
+        journalAppends.incrementAndGet();
+        journalNanos.addAndGet(nanos);
+        journalBytes.addAndGet(bytes);
+    }
+
+    void recordJournalError() {
+        journalErrors.incrementAndGet();
+    }
+
+    void recordJournalRecovery(final int records, final int states) {
+        journalRecords.addAndGet(records);
+        journalRecovered.addAndGet(states);
+    }
+
+    void recordShutdown(final int written, final int failed, final int spilled,
+                        final long millis) {
+        shutdownWritten.set(written);
+        shutdownFailed.set(failed);
+        shutdownSpilled.set(spilled);
+        shutdownMillis.set(millis);
+    }
+
+    void recordNewPlayerCheck(final boolean queried) {
+        newPlayerChecks.incrementAndGet();
+        if (queried) {
+            newPlayerQueries.incrementAndGet();
+        }
+    }
+
+    public long getEnqueueCount() {
+        return enqueues.get();
+    }
+
+    public long getEnqueueAverageNanos() {
+        return average(enqueueNanos.get(), enqueues.get());
+    }
+
+    public long getEnqueueMaxNanos() {
+        return enqueueMaxNanos.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public long getFlushAverageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(average(flushNanos.get(), flushes.get()));
+    }
+
+    public long getFlushMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushMaxNanos.get());
+    }
+
+    public long getFlushLastMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushLastNanos.get());
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getRowsFailed() {
+        return rowsFailed.get();
+    }
+
+    public long getSectionsWritten() {
+        return sectionsWritten.get();
+    }
+
+    public long getUnchangedSaves() {
+        return unchangedSaves.get();
+    }
+
+    public long getUnchangedRows() {
+        return unchangedRows.get();
+    }
+
+    public long getSizeTriggers() {
+        return sizeTriggers.get();
+    }
+
+    public long getAgeTriggers() {
+        return ageTriggers.get();
+    }
+
+    public long getIntervalTriggers() {
+        return intervalTriggers.get();
+    }
+
+    public long getBackoffs() {
+        return backoffs.get();
+    }
+
+    public long getBackoffMillis() {
+        return backoffMillis.get();
+    }
+
+    public long getSupersededSaves() {
+        return supersededSaves.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getBatchedRows() {
+        return batchedRows.get();
+    }
+
+    public int getFlushLaneCount() {
+        return laneDepths.length();
+    }
+
+    /**
+     * Get the number of rows striped onto a flush lane that have not been written yet.
+     *
+     * @param lane The lane.
+     * @return The number of rows.
+     */
+    public long getLaneDepth(final int lane) {
+        return laneDepths.get(lane);
+    }
+
+    /**
+     * Get the number of rows a flush lane has written.
+     *
+     * @param lane The lane.
+     * @return The number of rows.
+     */
+    public long getLaneRows(final int lane) {
+        return laneRows.get(lane);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheNegativeHits() {
+        return cacheNegativeHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCacheInvalidations() {
+        return cacheInvalidations.get();
+    }
+
+    public long getCacheEvictions() {
+        return cacheEvictions.get();
+    }
+
+    public long getCacheUnloads() {
+        return cacheUnloads.get();
+    }
+
+    public long getCachePlayers() {
+        return cachePlayers.get();
+    }
+
+    public long getCacheWeight() {
+        return cacheWeight.get();
+    }
+
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    public long getPrefetchAverageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(average(prefetchNanos.get(), prefetches.get()));
+    }
+
+    public long getPrefetchedRows() {
+        return prefetchedRows.get();
+    }
+
+    public long getPrefetchWaits() {
+        return prefetchWaits.get();
+    }
+
+    public long getPrefetchTimeouts() {
+        return prefetchTimeouts.get();
+    }
+
+    public long getEncodeCount() {
+        return encodes.get();
+    }
+
+    public long getEncodeAverageNanos() {
+        return average(encodeNanos.get(), encodes.get());
+    }
+
+    public long getEncodeAverageBytes() {
+        return average(encodedBytes.get(), encodes.get());
+    }
+
+    public long getDecodeCount() {
+        return decodes.get();
+    }
+
+    public long getDecodeAverageNanos() {
+        return average(decodeNanos.get(), decodes.get());
+    }
+
+    public long getSaveCount() {
+        return saves.get();
+    }
+
+    /**
+     * Get the average time a save spends on the calling Thread, usually the server Thread.
+     *
+     * @return The average time in nanoseconds.
+     */
+    public long getSaveAverageNanos() {
+        return average(saveNanos.get(), saves.get());
+    }
+
+    public long getSaveMaxNanos() {
+        return saveMaxNanos.get();
+    }
+
+    /**
+     * Get the average time spent encoding a save, on an encode Thread unless encoding is disabled.
+     *
+     * @return The average time in nanoseconds.
+     */
+    public long getSaveEncodeAverageNanos() {
+        return average(saveEncodeNanos.get(), saveEncodes.get());
+    }
+
+    public long getEncodeWaits() {
+        return encodeWaits.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Get the average time spent applying a loaded state on the calling Thread, usually the server
+     * Thread, including decoding it when it was not decoded in advance.
+     *
+     * @return The average time in nanoseconds.
+     */
+    public long getLoadAverageNanos() {
+        return average(loadNanos.get(), loads.get());
+    }
+
+    public long getLoadMaxNanos() {
+        return loadMaxNanos.get();
+    }
+
+    /**
+     * Get the number of loads that had to decode the state on the calling Thread.
+     *
+     * @return The number of loads.
+     */
+    public long getLoadsDecodedOnThread() {
+        return loadsDecodedOnThread.get();
+    }
+
+    public long getSlotsRestored() {
+        return slotsRestored.get();
+    }
+
+    public long getSlotsUnchanged() {
+        return slotsUnchanged.get();
+    }
+
+    public long getRestoresDeferred() {
+        return restoresDeferred.get();
+    }
+
+    public long getRestoreMaxTicks() {
+        return restoreMaxTicks.get();
+    }
+
+    public long getSwappedLoads() {
+        return swappedLoads.get();
+    }
+
+    public long getCoalescedSaves() {
+        return coalescedSaves.get();
+    }
+
+    public long getSettledSaves() {
+        return settledSaves.get();
+    }
+
+    public long getJournalAppends() {
+        return journalAppends.get();
+    }
+
+    public long getJournalAverageNanos() {
+        return average(journalNanos.get(), journalAppends.get());
+    }
+
+    public long getJournalAverageBytes() {
+        return average(journalBytes.get(), journalAppends.get());
+    }
+
+    public long getJournalErrors() {
+        return journalErrors.get();
+    }
+
+    public long getJournalRecords() {
+        return journalRecords.get();
+    }
+
+    public long getJournalRecovered() {
+        return journalRecovered.get();
+    }
+
+    public long getShutdownWritten() {
+        return shutdownWritten.get();
+    }
+
+    public long getShutdownFailed() {
+        return shutdownFailed.get();
+    }
+
+    public long getShutdownSpilled() {
+        return shutdownSpilled.get();
+    }
+
+    public long getShutdownMillis() {
+        return shutdownMillis.get();
+    }
+
+    public long getNewPlayerChecks() {
+        return newPlayerChecks.get();
+    }
+
+    public long getNewPlayerQueries() {
+        return newPlayerQueries.get();
+    }
+
+    /**
+     * Describe the current value of every counter, one line per group.
+     *
+     * @return The lines describing the counters.
+     */
+    public List<String> describe() {
+        final List<String> lines = new ArrayList<String>();
+        lines.add("Save: count=" + getSaveCount() + " tickAvg=" + getSaveAverageNanos()
+                + "ns tickMax=" + getSaveMaxNanos() + "ns encodeAvg="
+                + getSaveEncodeAverageNanos() + "ns loadWaits=" + getEncodeWaits());
+        lines.add("Load: count=" + getLoadCount() + " tickAvg=" + getLoadAverageNanos()
+                + "ns tickMax=" + getLoadMaxNanos() + "ns decodedOnTick="
+                + getLoadsDecodedOnThread() + " slotsRestored=" + getSlotsRestored()
+                + " slotsUnchanged=" + getSlotsUnchanged() + " deferred=" + getRestoresDeferred()
+                + " maxDeferTicks=" + getRestoreMaxTicks());
+        lines.add("Debounce: swapped=" + getSwappedLoads() + " coalesced=" + getCoalescedSaves()
+                + " settled=" + getSettledSaves());
+        lines.add("Enqueue: count=" + getEnqueueCount() + " avg=" + getEnqueueAverageNanos()
+                + "ns max=" + getEnqueueMaxNanos() + "ns");
+        lines.add("Flush: count=" + getFlushCount() + " avg=" + getFlushAverageMillis() + "ms max="
+                + getFlushMaxMillis() + "ms last=" + getFlushLastMillis() + "ms written="
+                + getRowsWritten() + " failed=" + getRowsFailed() + " sections="
+                + getSectionsWritten() + " unchangedRows=" + getUnchangedRows()
+                + " unchangedSaves=" + getUnchangedSaves() + " superseded="
+                + getSupersededSaves() + " batches=" + getBatchCount() + " batchedRows="
+                + getBatchedRows());
+        lines.add("Schedule: interval=" + scheduleIntervalMillis.get() + "ms maxAge="
+                + scheduleMaxAgeMillis.get() + "ms threshold=" + scheduleThreshold.get()
+                + " sizeTriggers=" + getSizeTriggers() + " ageTriggers=" + getAgeTriggers()
+                + " intervalTriggers=" + getIntervalTriggers() + " backoffs=" + getBackoffs()
+                + " backoff=" + getBackoffMillis() + "ms");
+        lines.add(describeLanes());
+        lines.add("Cache: hits=" + getCacheHits() + " negativeHits=" + getCacheNegativeHits()
+                + " misses=" + getCacheMisses() + " invalidations=" + getCacheInvalidations()
+                + " evictions=" + getCacheEvictions() + " unloads=" + getCacheUnloads()
+                + " players=" + getCachePlayers() + " bytes=" + getCacheWeight());
+        lines.add("Prefetch: count=" + getPrefetchCount() + " avg=" + getPrefetchAverageMillis()
+                + "ms rows=" + getPrefetchedRows() + " waits=" + getPrefetchWaits() + " timeouts="
+                + getPrefetchTimeouts());
+        lines.add("Items: encodes=" + getEncodeCount() + " avg=" + getEncodeAverageNanos() + "ns "
+                + getEncodeAverageBytes() + "B decodes=" + getDecodeCount() + " avg="
+                + getDecodeAverageNanos() + "ns");
+        lines.add("Journal: appends=" + getJournalAppends() + " avg=" + getJournalAverageNanos()
+                + "ns " + getJournalAverageBytes() + "B errors=" + getJournalErrors()
+                + " replayedRecords=" + getJournalRecords() + " replayedStates="
+                + getJournalRecovered());
+        lines.add("Last shutdown: written=" + getShutdownWritten() + " failed="
+                + getShutdownFailed() + " spilled=" + getShutdownSpilled() + " time="
+                + getShutdownMillis() + "ms");
+        lines.add("New player checks: count=" + getNewPlayerChecks() + " queried="
+                + getNewPlayerQueries());
+        return lines;
+    }
+
+    private String describeLanes() {
+        final AtomicLongArray depths = laneDepths;
+        final AtomicLongArray rowCounts = laneRows;
+        final StringBuilder sb = new StringBuilder("Lanes: count=").append(depths.length());
+        for (int i = 0; i < depths.length(); i++) {
+            sb.append(" [").append(i).append("] depth=").append(depths.get(i)).append(" rows=")
+                    .append(rowCounts.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static long average(final long total, final long count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.api.SaveState;
+import net.canarymod.api.entity.living.humanoid.Player;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies loaded states to players without letting any tick spend more than the tick budget on
+ * them. Game modes, conditions, prefixes and locations are cheap and always applied at once. The
+ * inventories, statistics and achievements of a restore that may be spread are applied as whole
+ * sections in priority order across all waiting players, inventories first. Whatever does not fit
+ * in the current tick is carried over to the next ones, at least one section per tick.
+ * <p>
+ * A player's pending restore is always completed before anything else reads or replaces the
+ * player's state, so a save never captures a half restored player. While the inventory of a player
+ * is still pending, {@link #isRestoringInventory(String)} is true and the plugin blocks the player
+ * from using the old inventory. All methods run on the server Thread.
+ */
+class RestoreScheduler {
+    private static final SaveState[] PRIORITY = new SaveState[]{
+            SaveState.GAMEMODE, SaveState.CONDITIONS, SaveState.PREFIX, SaveState.LOCATIONS,
+            SaveState.INVENTORY, SaveState.STATISTICS, SaveState.ACHIEVEMENTS
+    };
+    private static final EnumSet<SaveState> IMMEDIATE = EnumSet.of(
+            SaveState.GAMEMODE, SaveState.CONDITIONS, SaveState.PREFIX, SaveState.LOCATIONS);
+
+    /**
+     * Applies one section of a decoded state to a player.
+     */
+    interface SectionApplier {
+        void apply(PlayerSnapshot decoded, SaveState save, Player player);
+    }
+
+    private final SectionApplier applier;
+    private final PlayerStateMetrics metrics;
+    private final Map<String, Restore> pending;
+    private long budgetNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private long spentNanos;
+    private long tick;
+    private boolean started;
+
+    RestoreScheduler(final SectionApplier applier, final PlayerStateMetrics metrics) {
+        this.applier = applier;
+        this.metrics = metrics;
+        pending = new LinkedHashMap<String, Restore>();
+    }
+
+    synchronized void setBudget(final long nanos) {
+        budgetNanos = nanos;
+    }
+
+    /**
+     * Start carrying restores over to later ticks. Until then every restore is applied at once.
+     */
+    synchronized void start() {
+        started = true;
+    }
+
+    /**
+     * Apply every pending restore and go back to applying restores at once.
+     */
+    synchronized void stop() {
+        started = false;
+        for (final Restore restore : new ArrayList<Restore>(pending.values())) {
+            complete(restore.player.getUUIDString());
+        }
+    }
+
+    /**
+     * Apply the sections of a decoded state to a player. Any earlier restore of the player is
+     * completed first, and the game mode, conditions, prefix and locations are applied at once.
+     * Unless spread, the rest is applied at once too; otherwise as far as the budget of the current
+     * tick allows, and over the next ticks.
+     *
+     * @param player  The Player.
+     * @param decoded The decoded state, covering the sections.
+     * @param saves   The sections to apply.
+     * @param spread  True if the larger sections may be applied over the next ticks.
+     */
+    synchronized void restore(final Player player, final PlayerSnapshot decoded,
+                              final SaveState[] saves, final boolean spread) {
+        final String uuid = player.getUUIDString();
+        complete(uuid);
+        final Restore restore = new Restore(player, decoded, saves);
+        while (!restore.isDone() && IMMEDIATE.contains(restore.next())) {
+            restore.applyNext();
+        }
+        if (!spread || !started || restore.isDone()) {
+            while (!restore.isDone()) {
+                restore.applyNext();
+            }
+            restore.finished();
+            return;
+        }
+        pending.put(uuid, restore);
+        run(false);
+        if (pending.get(uuid) == restore) {
+            metrics.recordDeferredRestore();
+        }
+    }
+
+    /**
+     * Apply whatever remains of the restore of a player right away.
+     *
+     * @param uuid The UUID of the player.
+     */
+    synchronized void complete(final String uuid) {
+        final Restore restore = pending.remove(uuid);
+        if (restore != null && restore.player.isOnline()) {
+            while (!restore.isDone()) {
+                restore.applyNext();
+            }
+            restore.finished();
+        }
+    }
+
+    /**
+     * Drop the pending restore of a player who has left.
+     *
+     * @param uuid The UUID of the player.
+     */
+    synchronized void cancel(final String uuid) {
+        pending.remove(uuid);
+    }
+
+    synchronized boolean isRestoringInventory(final String uuid) {
+        final Restore restore = pending.get(uuid);
+        return restore != null && restore.remaining.contains(SaveState.INVENTORY);
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Start a new tick and spend its budget on the pending restores. Called once every tick.
+     */
+    synchronized void tick() {
+        tick++;
+        spentNanos = 0;
+        if (!pending.isEmpty()) {
+            run(true);
+        }
+    }
+
+    private void run(final boolean atLeastOne) {
+        final long start = System.nanoTime();
+        final long deadline = start + budgetNanos - spentNanos;
+        boolean applied = false;
+        levels:
+        for (final SaveState section : PRIORITY) {
+            // A copy, hooks fired while applying a section may complete or replace restores
+            for (final Restore restore : new ArrayList<Restore>(pending.values())) {
+                final String uuid = restore.player.getUUIDString();
+                if (pending.get(uuid) != restore) {
+                    continue;
+                }
+                if (!restore.player.isOnline()) {
+                    pending.remove(uuid);
+                } else if (restore.next() == section) {
+                    if ((applied || !atLeastOne) && System.nanoTime() - deadline >= 0) {
+                        break levels;
+                    }
+                    restore.applyNext();
+                    applied = true;
+                    if (restore.isDone() && pending.get(uuid) == restore) {
+                        pending.remove(uuid);
+                        restore.finished();
+                    }
+                }
+            }
+        }
+        spentNanos += System.nanoTime() - start;
+    }
+
+    private class Restore {
+        private final Player player;
+        private final PlayerSnapshot decoded;
+        private final List<SaveState> remaining;
+        private final long queuedTick;
+
+        private Restore(final Player player, final PlayerSnapshot decoded,
+                        final SaveState[] saves) {
+            this.player = player;
+            this.decoded = decoded;
+            remaining = new ArrayList<SaveState>(saves.length);
+            for (final SaveState section : PRIORITY) {
+                for (final SaveState save : saves) {
+                    if (save == section) {
+                        remaining.add(save);
+                        break;
+                    }
+                }
+            }
+            queuedTick = tick;
+        }
+
+        private SaveState next() {
+            return remaining.get(0);
+        }
+
+        private void applyNext() {
+            applier.apply(decoded, remaining.remove(0), player);
+        }
+
+        private boolean isDone() {
+            return remaining.isEmpty();
+        }
+
+        private void finished() {
+            metrics.recordRestoreTicks(tick - queuedTick);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerStatePlugin;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.statistics.Achievements;
+import net.canarymod.api.statistics.Stat;
+import net.canarymod.api.statistics.Statistics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs the values of a fixed set of statistics into an int[] indexed by a dictionary built once
+ * from the Canary enums. Values are stored as "name=value;" pairs keyed by name so the stored form
+ * stays valid when Canary adds or reorders statistics. Data starting with {@link #SPARSE} only
+ * holds the non-zero values, every statistic missing from it is zero. In older data, which holds
+ * every value, a statistic that is missing decodes to {@link #ABSENT} and is left untouched by a
+ * restore.
+ */
+class StatCodec {
+    /**
+     * The value of a statistic that was not stored.
+     */
+    static final int ABSENT = Integer.MIN_VALUE;
+
+    /**
+     * The marker of data that omits zero values.
+     */
+    static final String SPARSE = "v2:";
+
+    private final Stat[] stats;
+    private final String[] names;
+    private final Map<String, Integer> indexes;
+
+    static StatCodec forStatistics() {
+        final Statistics[] values = Statistics.values();
+        final Stat[] stats = new Stat[values.length];
+        final String[] names = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            stats[i] = values[i].getInstance();
+            names[i] = values[i].getNativeName();
+        }
+        return new StatCodec(stats, names);
+    }
+
+    static StatCodec forAchievements() {
+        final Achievements[] values = Achievements.values();
+        final Stat[] stats = new Stat[values.length];
+        final String[] names = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            stats[i] = values[i].getInstance();
+            names[i] = values[i].getNativeName();
+        }
+        return new StatCodec(stats, names);
+    }
+
+    private StatCodec(final Stat[] stats, final String[] names) {
+        this.stats = stats;
+        this.names = names;
+        indexes = new HashMap<String, Integer>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            indexes.put(names[i], i);
+        }
+    }
+
+    /**
+     * Read the current values of every statistic from a player.
+     *
+     * @param player The Player.
+     * @return The values, indexed by the dictionary.
+     */
+    int[] capture(final Player player) {
+        final int[] values = new int[stats.length];
+        for (int i = 0; i < stats.length; i++) {
+            values[i] = player.getStat(stats[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Apply values to a player, only touching the statistics that were stored and whose value
+     * differs.
+     *
+     * @param values The values, indexed by the dictionary.
+     * @param player The Player.
+     */
+    void restore(final int[] values, final Player player) {
+        for (int i = 0; i < stats.length; i++) {
+            if (values[i] != ABSENT && player.getStat(stats[i]) != values[i]) {
+                player.setStat(stats[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reset every statistic of a player to zero.
+     *
+     * @param player The Player.
+     */
+    void clear(final Player player) {
+        restore(new int[stats.length], player);
+    }
+
+    /**
+     * Encode values, omitting the zeros. Values that include {@link #ABSENT} are written in full
+     * without the marker instead, so the statistics that were never stored stay absent.
+     *
+     * @param values The values, indexed by the dictionary.
+     * @return The data to store.
+     */
+    String encode(final int[] values) {
+        boolean complete = true;
+        for (final int value : values) {
+            if (value == ABSENT) {
+                complete = false;
+                break;
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        if (complete) {
+            sb.append(SPARSE);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (complete ? values[i] != 0 : values[i] != ABSENT) {
+                sb.append(names[i]).append('=').append(values[i]).append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode stored values. Statistics missing from data marked {@link #SPARSE} are zero, those
+     * missing from older data are {@link #ABSENT}, and names that are no longer known are ignored.
+     * Malformed entries are skipped, so one corrupt value does not stop the others from being
+     * restored.
+     *
+     * @param data The stored data.
+     * @return The values, indexed by the dictionary.
+     */
+    int[] decode(final String data) {
+        final int[] values = new int[stats.length];
+        final boolean sparse = data != null && data.startsWith(SPARSE);
+        if (!sparse) {
+            Arrays.fill(values, ABSENT);
+        }
+        if (data != null) {
+            int malformed = 0;
+            int start = sparse ? SPARSE.length() : 0;
+            int end;
+            while ((end = data.indexOf(';', start)) >= 0) {
+                final int equals = data.indexOf('=', start);
+                if (equals > start && equals < end) {
+                    final Integer index = indexes.get(data.substring(start, equals));
+                    if (index != null) {
+                        final long value = parseInt(data, equals + 1, end);
+                        if (value != ABSENT) {
+                            values[index] = (int) value;
+                        } else {
+                            malformed++;
+                        }
+                    }
+                } else if (end > start) {
+                    malformed++;
+                }
+                start = end + 1;
+            }
+            if (malformed > 0) {
+                PlayerStatePlugin.LOG.warn("Skipped " + malformed + " malformed stored statistics");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parse a decimal int.
+     *
+     * @return The value, or {@link #ABSENT} if the text is not a valid int.
+     */
+    private static long parseInt(final String s, final int start, final int end) {
+        int i = start;
+        final boolean negative = i < end && s.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return ABSENT;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return ABSENT;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value <= Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return ABSENT;
+        }
+        return value;
+    }
+}
@@ -10,33 +10,60 @@ import java.util.Map;
 public class WorldStateManager implements IWorldStateManager {
     private final Map<String, String> managedWorldStates;
     private final Map<String, SaveState[]> managedStateSaves;
+    private Runnable listener;
 
     public WorldStateManager() {
         managedWorldStates = new HashMap<String, String>();
         managedStateSaves = new HashMap<String, SaveState[]>();
     }
 
+    /**
+     * Set what to run after a world is registered or unregistered.
+     *
+     * @param listener The Runnable to run, or null for none.
+     */
+    public synchronized void setListener(final Runnable listener) {
+        this.listener = listener;
+    }
+
     @Override
     public void registerWorld(final World world, final SaveState[] saves) {
         final String name = world.getName();
         final String state = MANAGED_WORLD + name;
-        managedWorldStates.put(name, state);
-        managedStateSaves.put(state, saves);
+        synchronized (this) {
+            managedWorldStates.put(name, state);
+            // Keep a copy, the caller may reuse its array
+            managedStateSaves.put(state, saves.clone());
+        }
+        changed();
     }
 
     @Override
     public void unregisterWorld(final World world) {
         final String name = world.getName();
-        managedStateSaves.remove(managedWorldStates.remove(name));
+        synchronized (this) {
+            managedStateSaves.remove(managedWorldStates.remove(name));
+        }
+        changed();
     }
 
     @Override
-    public String getManagedWorldState(final World world) {
+    public synchronized String getManagedWorldState(final World world) {
         return managedWorldStates.get(world.getName());
     }
 
     @Override
-    public SaveState[] getManagedStateSaves(final String state) {
+    public synchronized SaveState[] getManagedStateSaves(final String state) {
         return managedStateSaves.get(state);
     }
+
+    private void changed() {
+        final Runnable current;
+        synchronized (this) {
+            current = listener;
+        }
+        if (current != null) {
+            current.run();
+        }
+    }
 }
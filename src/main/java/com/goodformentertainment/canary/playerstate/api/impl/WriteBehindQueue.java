@@ -0,0 +1,217 @@
+package com.goodformentertainment.canary.playerstate.api.impl;
+
+import com.goodformentertainment.canary.playerstate.PlayerDao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the PlayerDaos waiting to be written to the database. Each queued PlayerDao is a snapshot
+ * of one state of a player whose saved values are not modified once queued (see {@link PlayerDao}
+ * for what may still change and why that is safe), and only the latest version of each state is
+ * kept: queueing a newer version replaces the older one, which is then never written. Enqueueing
+ * never blocks, so it is safe to call from the server Thread while a flush is running; the flusher
+ * drains the pending entries into a private batch and writes that batch without holding any lock
+ * shared with the server Thread.
+ */
+class WriteBehindQueue {
+    private final Queue<String> pending;
+    private final ConcurrentMap<String, PlayerDao> latest;
+    private final ConcurrentMap<String, Integer> pendingPlayers;
+    private final Set<PlayerDao> inFlight;
+    private final PlayerStateMetrics metrics;
+    private final AtomicInteger size;
+    private final AtomicLong oldestNanos;
+
+    WriteBehindQueue(final PlayerStateMetrics metrics) {
+        this.metrics = metrics;
+        pending = new ConcurrentLinkedQueue<String>();
+        latest = new ConcurrentHashMap<String, PlayerDao>();
+        pendingPlayers = new ConcurrentHashMap<String, Integer>();
+        // Only touched by flushers, never by the server Thread
+        inFlight = Collections.synchronizedSet(Collections.newSetFromMap(
+                new IdentityHashMap<PlayerDao, Boolean>()));
+        size = new AtomicInteger();
+        oldestNanos = new AtomicLong();
+    }
+
+    /**
+     * Queue a PlayerDao for the next flush. An older version of the same state that is still queued
+     * is replaced and its changed sections are carried over. If a newer version is already queued,
+     * the changed sections of this PlayerDao are carried over to it instead.
+     *
+     * @param playerDao The PlayerDao to write, whose saved values must not be modified afterwards.
+     */
+    void enqueue(final PlayerDao playerDao) {
+        final long start = System.nanoTime();
+        final String key = key(playerDao);
+        while (true) {
+            final PlayerDao queued = latest.get(key);
+            if (queued == null) {
+                if (latest.putIfAbsent(key, playerDao) == null) {
+                    increment(playerDao.uuid);
+                    size.incrementAndGet();
+                    oldestNanos.compareAndSet(0, start);
+                    pending.offer(key);
+                    break;
+                }
+            } else if (queued == playerDao) {
+                break;
+            } else if (queued.getVersion() >= playerDao.getVersion()) {
+                queued.markDirty(playerDao.getDirtySections());
+                metrics.recordSupersededSave();
+                break;
+            } else {
+                // Carry the sections over first, a flusher may drain the new version at any time
+                playerDao.markDirty(queued.getDirtySections());
+                if (latest.replace(key, queued, playerDao)) {
+                    metrics.recordSupersededSave();
+                    break;
+                }
+            }
+        }
+        metrics.recordEnqueue(System.nanoTime() - start);
+    }
+
+    /**
+     * Record that a PlayerDao for a player is being prepared, so that {@link #hasPending(String)}
+     * reports the player from now on. Must be followed by {@link #release(String)} once the
+     * PlayerDao has been queued or turned out to be unchanged.
+     *
+     * @param uuid The UUID of the player.
+     */
+    void reserve(final String uuid) {
+        increment(uuid);
+    }
+
+    /**
+     * Release a reservation made by {@link #reserve(String)}.
+     *
+     * @param uuid The UUID of the player.
+     */
+    void release(final String uuid) {
+        decrement(uuid);
+    }
+
+    /**
+     * Remove everything currently queued. Each returned PlayerDao must be passed to
+     * {@link #complete(PlayerDao)} once its write has been attempted.
+     *
+     * @return The PlayerDaos to write, owned exclusively by the caller.
+     */
+    Collection<PlayerDao> drain() {
+        final List<PlayerDao> batch = new ArrayList<PlayerDao>();
+        // Everything queued before this point is drained, states queued meanwhile restart the clock
+        oldestNanos.set(0);
+        String key;
+        while ((key = pending.poll()) != null) {
+            final PlayerDao playerDao = latest.remove(key);
+            if (playerDao != null) {
+                size.decrementAndGet();
+                inFlight.add(playerDao);
+                batch.add(playerDao);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Mark the write of a drained PlayerDao as finished.
+     *
+     * @param playerDao The drained PlayerDao.
+     */
+    void complete(final PlayerDao playerDao) {
+        inFlight.remove(playerDao);
+        decrement(playerDao.uuid);
+    }
+
+    /**
+     * Check whether a player has a write that is queued or still being flushed.
+     *
+     * @param uuid The UUID of the player.
+     * @return True if a write for the player has not yet completed.
+     */
+    boolean hasPending(final String uuid) {
+        return pendingPlayers.containsKey(uuid);
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Get the states that have not been written yet: those drained but not completed, followed by
+     * those waiting to be drained. A state may appear twice, the later one is newer.
+     *
+     * @return A copy of the PlayerDaos not yet written.
+     */
+    List<PlayerDao> snapshot() {
+        final List<PlayerDao> unwritten;
+        synchronized (inFlight) {
+            unwritten = new ArrayList<PlayerDao>(inFlight);
+        }
+        unwritten.addAll(latest.values());
+        return unwritten;
+    }
+
+    /**
+     * Get the number of states waiting to be drained.
+     *
+     * @return The number of queued PlayerDaos.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Get when the oldest state waiting to be drained was queued.
+     *
+     * @return The System.nanoTime() at which it was queued, or 0 if nothing has been queued since
+     * the last drain.
+     */
+    long getOldestNanos() {
+        return oldestNanos.get();
+    }
+
+    private static String key(final PlayerDao playerDao) {
+        return playerDao.uuid + '\n' + playerDao.state;
+    }
+
+    private void increment(final String uuid) {
+        while (true) {
+            final Integer count = pendingPlayers.get(uuid);
+            if (count == null) {
+                if (pendingPlayers.putIfAbsent(uuid, 1) == null) {
+                    return;
+                }
+            } else if (pendingPlayers.replace(uuid, count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void decrement(final String uuid) {
+        while (true) {
+            final Integer count = pendingPlayers.get(uuid);
+            if (count == null) {
+                return;
+            } else if (count == 1) {
+                if (pendingPlayers.remove(uuid, count)) {
+                    return;
+                }
+            } else if (pendingPlayers.replace(uuid, count, count - 1)) {
+                return;
+            }
+        }
+    }
+}